@@ -0,0 +1,78 @@
+package main;
+
+import data.ColumnGraph;
+import data.PostProcess;
+import data.Vector;
+import io.DataReader;
+import io.ReadSchema;
+import util.CategorizeMode;
+import util.Util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the categorizations with percentiles estimated by a
+ * {@link data.QuantileSketch} with the exact ones.
+ * <p>
+ * Reads a database, optionally repeated to make a larger input, and runs
+ * the graph of {@link PostProcess} on it with exact percentiles and with the given rank error.
+ * Prints the number of rows that land in a different category in each of K to O, and
+ * in P, and the best time of each run.  It is built by the {@code bench} profile.
+ * </p>
+ */
+public class CategorizeBench {
+
+    private static final String[] COLUMNS = {"K", "L", "M", "N", "O", "P"};
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args the database file, the rank error, the number of copies of its rows and
+     *             the number of rounds.  The last three are optional.
+     */
+    public static void main(String[] args) {
+        double error = (args.length > 1) ? Double.parseDouble(args[1]) : 0.01;
+        int copies = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+        int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+        DataReader reader = DataReader.create(args[0], ReadSchema.consecutive(6));
+        List<Vector> base = reader.getData();
+        if (base == null) {
+            System.out.println(reader.getErrMsg());
+            return;
+        }
+        for (int i = 0; i < base.size(); i++) {
+            Vector v = base.get(i);
+            for (int k = 1; k < copies; k++) {
+                v = v.append(base.get(i));
+            }
+            base.set(i, v);
+        }
+        int n = base.get(0).size();
+
+        ColumnGraph exactGraph = PostProcess.graph();
+        ColumnGraph approxGraph = PostProcess.graph(CategorizeMode.rankError(error));
+        double best = Double.MAX_VALUE;
+        double bestApprox = Double.MAX_VALUE;
+        Map<String, Vector> exact = null;
+        Map<String, Vector> approx = null;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            exact = exactGraph.run(base, null);
+            long t1 = System.nanoTime();
+            approx = approxGraph.run(base, null);
+            long t2 = System.nanoTime();
+            best = Math.min(best, (t1 - t0) / 1e6);
+            bestApprox = Math.min(bestApprox, (t2 - t1) / 1e6);
+        }
+
+        System.out.printf("rows: %d, rank error: %g%n", n, error);
+        for (String col : COLUMNS) {
+            int diff = Util.countDifferences(exact.get(col), approx.get(col));
+            System.out.printf("%s: %d rows in a different category (%.3f%%)%n",
+                    col, diff, 100.0 * diff / n);
+        }
+        System.out.printf("exact       %8.1f ms%n", best);
+        System.out.printf("approximate %8.1f ms (%.1fx)%n", bestApprox, best / bestApprox);
+    }
+}
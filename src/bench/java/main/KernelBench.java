@@ -0,0 +1,71 @@
+package main;
+
+import data.Expr;
+import data.Vector;
+
+/**
+ * Times the element-wise Vector operations.
+ * <p>
+ * Prints the time per element of each operation, for the kernels selected on this
+ * JVM.  It is built by the {@code bench} profile.  To compare the SIMD kernels with
+ * the scalar ones, build with the {@code simd} profile as well, and run once with
+ * {@code --add-modules jdk.incubator.vector} and once with {@code -Dqexcel.simd=false}.
+ * </p>
+ */
+public class KernelBench {
+
+    private interface Task {
+        Vector run(Vector a, Vector b);
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args the vector size and the number of rounds, both optional.
+     */
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.sin(i);
+            y[i] = Math.cos(i);
+        }
+        Vector a = new Vector(x);
+        Vector b = new Vector(y).shift(-1);
+
+        String[] names = {"sub", "mult", "scaleAdd", "max", "min", "gt", "gt(double)", "not", "scale"};
+        Task[] tasks = {
+                (p, q) -> p.sub(q),
+                (p, q) -> p.mult(q),
+                (p, q) -> p.scaleAdd(0.5, q),
+                (p, q) -> p.max(q),
+                (p, q) -> p.min(q),
+                (p, q) -> p.gt(q),
+                (p, q) -> p.gt(0),
+                (p, q) -> p.not(),
+                (p, q) -> p.lazy().scale(0.5).eval()};
+
+        System.out.printf("kernels: %s, n = %d%n", Expr.kernels(), n);
+        int reps = Math.max(1, 50000000 / n);
+        double[] best = new double[tasks.length];
+        double sink = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (int t = 0; t < tasks.length; t++) {
+                long t0 = System.nanoTime();
+                for (int k = 0; k < reps; k++) {
+                    sink += tasks[t].run(a, b).get(k % n);
+                }
+                double ns = (double) (System.nanoTime() - t0) / reps / n;
+                best[t] = (r == 0) ? ns : Math.min(best[t], ns);
+            }
+        }
+        for (int t = 0; t < tasks.length; t++) {
+            System.out.printf("%-12s %7.3f ns/element%n", names[t], best[t]);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
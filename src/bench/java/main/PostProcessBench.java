@@ -0,0 +1,77 @@
+package main;
+
+import data.FusedPostProcess;
+import data.PostProcess;
+import data.Vector;
+import io.DataReader;
+import io.ReadSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link FusedPostProcess} against {@link PostProcess} and times both.
+ * <p>
+ * Reads a database, optionally repeated to make a larger input, runs both engines on
+ * it, and prints the number of cells where they differ and the best time of each.
+ * It is built by the {@code bench} profile.  Run with {@code -Dqexcel.parallel.threshold=2147483647} to compare the moving
+ * averages of large inputs bit for bit as well.
+ * </p>
+ */
+public class PostProcessBench {
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args the database file, the number of copies of its rows and the number of
+     *             rounds.  The last two are optional.
+     */
+    public static void main(String[] args) {
+        int copies = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        DataReader reader = DataReader.create(args[0], ReadSchema.consecutive(6));
+        List<Vector> base = reader.getData();
+        if (base == null) {
+            System.out.println(reader.getErrMsg());
+            return;
+        }
+        for (int i = 0; i < base.size(); i++) {
+            Vector v = base.get(i);
+            for (int k = 1; k < copies; k++) {
+                v = v.append(base.get(i));
+            }
+            base.set(i, v);
+        }
+        int n = base.get(0).size();
+
+        List<Vector> expected = new ArrayList<>(base);
+        List<Vector> actual = new ArrayList<>(base);
+        PostProcess.postProcess(expected);
+        FusedPostProcess.postProcess(actual);
+        int diff = 0;
+        for (int j = 0; j < expected.size(); j++) {
+            for (int i = 0; i < n; i++) {
+                double a = expected.get(j).get(i);
+                double b = actual.get(j).get(i);
+                if (!(a == b || (Double.isNaN(a) && Double.isNaN(b)))) {
+                    diff++;
+                }
+            }
+        }
+        System.out.printf("rows: %d, columns: %d, cells that differ: %d%n", n, expected.size(), diff);
+
+        double best = Double.MAX_VALUE;
+        double bestFused = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            PostProcess.postProcess(new ArrayList<>(base));
+            long t1 = System.nanoTime();
+            FusedPostProcess.postProcess(new ArrayList<>(base));
+            long t2 = System.nanoTime();
+            best = Math.min(best, (t1 - t0) / 1e6);
+            bestFused = Math.min(bestFused, (t2 - t1) / 1e6);
+        }
+        System.out.printf("PostProcess      %8.1f ms%n", best);
+        System.out.printf("FusedPostProcess %8.1f ms (%.1fx)%n", bestFused, best / bestFused);
+    }
+}
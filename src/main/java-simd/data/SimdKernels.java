@@ -0,0 +1,123 @@
+package data;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} that run on SIMD lanes with the JDK Vector API.
+ * <p>
+ * Only compiled by the {@code simd} build profile, and only loaded if the JVM is
+ * started with {@code --add-modules jdk.incubator.vector}.  Each loop runs whole
+ * lanes, then hands the tail to the scalar loop.  No operation is fused, so the
+ * results equal those of the scalar loops, up to the bit pattern of NaNs.
+ * </p>
+ */
+class SimdKernels extends Kernels {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final DoubleVector ZERO = DoubleVector.zero(S);
+    private static final DoubleVector ONE = DoubleVector.broadcast(S, 1);
+
+    @Override
+    boolean isSupported() {
+        return S.length() > 1;
+    }
+
+    @Override
+    String name() {
+        return "simd x" + S.length();
+    }
+
+    @Override
+    void sub(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).sub(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.sub(x, k, to, y, d);
+    }
+
+    @Override
+    void mult(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).mul(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.mult(x, k, to, y, d);
+    }
+
+    @Override
+    void div(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).div(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.div(x, k, to, y, d);
+    }
+
+    @Override
+    void max(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).max(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.max(x, k, to, y, d);
+    }
+
+    @Override
+    void min(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).min(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.min(x, k, to, y, d);
+    }
+
+    @Override
+    void gt(double[] x, int from, int to, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            VectorMask<Double> m = DoubleVector.fromArray(S, x, k).compare(VectorOperators.GT, DoubleVector.fromArray(S, y, k - d));
+            ZERO.blend(ONE, m).intoArray(x, k);
+        }
+        super.gt(x, k, to, y, d);
+    }
+
+    @Override
+    void scaleAdd(double[] x, int from, int to, double scale, double[] y, int d) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).mul(scale).add(DoubleVector.fromArray(S, y, k - d)).intoArray(x, k);
+        }
+        super.scaleAdd(x, k, to, scale, y, d);
+    }
+
+    @Override
+    void gt(double[] x, int from, int to, double thres) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            ZERO.blend(ONE, DoubleVector.fromArray(S, x, k).compare(VectorOperators.GT, thres)).intoArray(x, k);
+        }
+        super.gt(x, k, to, thres);
+    }
+
+    @Override
+    void not(double[] x, int from, int to) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            ZERO.blend(ONE, DoubleVector.fromArray(S, x, k).compare(VectorOperators.EQ, 0)).intoArray(x, k);
+        }
+        super.not(x, k, to);
+    }
+
+    @Override
+    void scale(double[] x, int from, int to, double scale) {
+        int k = from;
+        for (int end = from + S.loopBound(to - from); k < end; k += S.length()) {
+            DoubleVector.fromArray(S, x, k).mul(scale).intoArray(x, k);
+        }
+        super.scale(x, k, to, scale);
+    }
+}
@@ -0,0 +1,202 @@
+package data;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A pool of arrays that {@link Vector} results are allocated from, so short-lived
+ * vectors do not churn the heap.
+ * <p>
+ * {@link Expr#eval(Arena)}, {@link Expr#evalCategorical(Arena)} and
+ * {@link Vector#integral(Arena)} take an array from the pool, the smallest one that
+ * is large enough, and allocate a new one only if none is.  {@link #release(Vector)}
+ * gives the array of one vector back, and {@link #releaseAll()} gives back the arrays
+ * of all vectors allocated since the last {@code releaseAll()}.  A released vector
+ * must not be used any more, nor any view of it.  Arrays stay in the pool until the
+ * arena is closed, so processing a second input of similar size allocates close to
+ * nothing.  The pool holds at most as many free arrays as were ever in use at once,
+ * and drops the smallest ones first.
+ * </p>
+ * <p>
+ * Vectors at or above the {@link Storage} threshold are not pooled.  An arena must
+ * not be used from several threads at once.
+ * </p>
+ */
+public class Arena implements AutoCloseable {
+
+    private final Pool<double[]> doubles;
+    private final Pool<byte[]> bytes;
+    private long allocated;
+
+    /**
+     * Create a new, empty Arena.
+     */
+    public Arena() {
+        doubles = new Pool<>();
+        bytes = new Pool<>();
+    }
+
+    /**
+     * Returns a new vector of the given size, with undefined contents.
+     */
+    Vector allocate(int size) {
+        if (Storage.isOffHeap(size)) {
+            return Vector.allocate(size);
+        }
+        double[] arr = doubles.take(size, false);
+        if (arr == null) {
+            arr = new double[size];
+            allocated += 8L * size;
+            doubles.add(arr);
+        }
+        return Vector.wrap(arr, size);
+    }
+
+    /**
+     * Returns a new categorical vector of the given size, with undefined contents.
+     */
+    Vector allocateCategorical(int size) {
+        byte[] arr = bytes.take(size, false);
+        if (arr == null) {
+            arr = new byte[size];
+            allocated += size;
+            bytes.add(arr);
+        }
+        return Vector.wrapCategorical(arr, size);
+    }
+
+    /**
+     * Returns an array of exactly the given length, with undefined contents.  Give it
+     * back with {@link #release(double[])}.
+     *
+     * @param length the length.
+     * @return the array.
+     */
+    public double[] take(int length) {
+        double[] arr = doubles.take(length, true);
+        if (arr == null) {
+            arr = new double[length];
+            allocated += 8L * length;
+            doubles.add(arr);
+        }
+        return arr;
+    }
+
+    /**
+     * Gives an array from {@link #take(int)} back to the pool.  Does nothing if the
+     * array was not taken from this arena, or is already given back.
+     *
+     * @param arr the array, which must not be used afterwards.
+     */
+    public void release(double[] arr) {
+        doubles.release(arr, arr.length);
+    }
+
+    /**
+     * Gives the array of the given vector back to the pool.  Does nothing if the vector
+     * was not allocated by this arena, or is already released.
+     *
+     * @param v the vector, which must not be used afterwards.
+     */
+    public void release(Vector v) {
+        if (v.array() != null) {
+            doubles.release(v.array(), v.array().length);
+        } else if (v.codes() != null) {
+            bytes.release(v.codes(), v.codes().length);
+        }
+    }
+
+    /**
+     * Gives the arrays of all vectors allocated by this arena back to the pool.
+     */
+    public void releaseAll() {
+        for (double[] arr : doubles.used.toArray(new double[0][])) {
+            doubles.release(arr, arr.length);
+        }
+        for (byte[] arr : bytes.used.toArray(new byte[0][])) {
+            bytes.release(arr, arr.length);
+        }
+    }
+
+    /**
+     * Returns the number of bytes this arena has allocated on the heap so far.
+     *
+     * @return the number of bytes.
+     */
+    public long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Empties the pool.  Vectors allocated by this arena stay valid.
+     */
+    @Override
+    public void close() {
+        doubles.clear();
+        bytes.clear();
+    }
+
+    /**
+     * The free arrays of one type by length, and the ones in use.
+     */
+    private static class Pool<T> {
+        final TreeMap<Integer, ArrayDeque<T>> free = new TreeMap<>();
+        final Set<T> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int numFree;
+        private int peak;
+
+        /**
+         * Returns the smallest free array of at least the given length, or of exactly
+         * the given length, and marks it used.  Returns null if there is none.
+         */
+        T take(int length, boolean exact) {
+            Map.Entry<Integer, ArrayDeque<T>> fit = exact ? floorExact(length) : free.ceilingEntry(length);
+            if (fit == null) {
+                return null;
+            }
+            T arr = pop(fit);
+            used.add(arr);
+            peak = Math.max(peak, used.size());
+            return arr;
+        }
+
+        void add(T arr) {
+            used.add(arr);
+            peak = Math.max(peak, used.size());
+        }
+
+        private T pop(Map.Entry<Integer, ArrayDeque<T>> e) {
+            T arr = e.getValue().pop();
+            if (e.getValue().isEmpty()) {
+                free.remove(e.getKey());
+            }
+            numFree--;
+            return arr;
+        }
+
+        private Map.Entry<Integer, ArrayDeque<T>> floorExact(int length) {
+            Map.Entry<Integer, ArrayDeque<T>> e = free.floorEntry(length);
+            return (e != null && e.getKey() == length) ? e : null;
+        }
+
+        void release(T arr, int length) {
+            if (used.remove(arr)) {
+                free.computeIfAbsent(length, k -> new ArrayDeque<>()).push(arr);
+                numFree++;
+                while (numFree > peak) {
+                    pop(free.firstEntry());
+                }
+            }
+        }
+
+        void clear() {
+            free.clear();
+            used.clear();
+            numFree = 0;
+        }
+    }
+}
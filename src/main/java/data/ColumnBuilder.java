@@ -0,0 +1,99 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * A growable primitive double array used to build a {@link Vector} one value at a
+ * time without boxing.
+ * <p>
+ * The backing array grows by half of its size when full.  {@link #build()} trims it
+ * to size and hands it off, after which this builder is empty again.
+ * </p>
+ */
+public class ColumnBuilder {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final double[] EMPTY = new double[0];
+
+    private double[] data;
+    private int size;
+
+    /**
+     * Create a new ColumnBuilder instance.
+     */
+    public ColumnBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new ColumnBuilder instance.
+     *
+     * @param capacity the initial capacity.
+     */
+    public ColumnBuilder(int capacity) {
+        data = new double[capacity];
+        size = 0;
+    }
+
+    /**
+     * Appends the given value.
+     *
+     * @param val the value to append.
+     */
+    public void add(double val) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, Math.max(size + (size >> 1), DEFAULT_CAPACITY));
+        }
+        data[size++] = val;
+    }
+
+    /**
+     * Returns the ith value.
+     *
+     * @param i the index.
+     * @return the ith value.
+     */
+    public double get(int i) {
+        return data[i];
+    }
+
+    /**
+     * Replaces the ith value.
+     *
+     * @param i   the index, below {@link #size()}.
+     * @param val the new value.
+     */
+    public void set(int i, double val) {
+        data[i] = val;
+    }
+
+    /**
+     * Returns a copy of the values added so far.
+     *
+     * @return the values.
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Returns the number of values added so far.
+     *
+     * @return the number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Trims the backing array to size and hands it off.  This builder is empty afterwards.
+     *
+     * @return the built array.
+     */
+    public double[] build() {
+        double[] ans = (size == data.length) ? data : Arrays.copyOf(data, size);
+        data = EMPTY;
+        size = 0;
+        return ans;
+    }
+}
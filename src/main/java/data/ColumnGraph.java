@@ -0,0 +1,341 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A graph of named column stages, each derived from input columns or other stages.
+ * <p>
+ * A stage can only read columns added before it, so the graph has no cycles.
+ * {@link #run(List, Listener)} starts each stage as soon as its inputs are done, on the
+ * pool of {@link Parallel}, so stages that do not depend on each other run
+ * concurrently.  Stages must therefore not share state, such as an {@link Arena},
+ * unless the graph is only run one stage at a time.
+ * </p>
+ * <p>
+ * {@link #run(List, Collection, Listener)} only runs the stages of the requested
+ * columns and those they read, transitively, so the time and memory of a run scale
+ * with the columns actually used.
+ * </p>
+ * <p>
+ * If a {@link DerivedCache} is set, the columns of stages added with an identity are
+ * looked up before a run, and those found are not computed, nor the columns only they
+ * read.  The columns computed are added to the cache.
+ * </p>
+ */
+public class ColumnGraph {
+
+    /**
+     * Derives a column from the columns a stage reads.
+     */
+    public interface Derivation {
+        /**
+         * Returns the derived column.
+         *
+         * @param in the columns the stage reads, in the order they were given to
+         *           {@link #add(String, Derivation, String...)}.
+         * @return the derived column.
+         */
+        Vector derive(Vector[] in);
+    }
+
+    /**
+     * Receives the progress of a run.  Called from the thread that ran the stage.
+     */
+    public interface Listener {
+        /**
+         * Called when a stage is done.
+         *
+         * @param name  the name of the stage.
+         * @param nanos the time the stage took, in nanoseconds.
+         * @param done  the number of stages done so far, including this one.
+         * @param total the number of stages.
+         */
+        void stageDone(String name, long nanos, int done, int total);
+    }
+
+    private static class Stage {
+        final String name;
+        final String identity;
+        final Derivation derivation;
+        final List<String> in;
+
+        Stage(String name, String identity, Derivation derivation, List<String> in) {
+            this.name = name;
+            this.identity = identity;
+            this.derivation = derivation;
+            this.in = in;
+        }
+    }
+
+    private final List<String> inputs;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private DerivedCache cache;
+
+    /**
+     * Create a new ColumnGraph with the given input columns and no stages.
+     *
+     * @param inputs the names of the input columns.
+     */
+    public ColumnGraph(String... inputs) {
+        this.inputs = Arrays.asList(inputs.clone());
+    }
+
+    /**
+     * Adds a stage.
+     *
+     * @param name       the name of the stage.
+     * @param derivation derives the column of the stage.
+     * @param in         the names of the columns the stage reads, input columns or
+     *                   stages added before.
+     * @return this graph.
+     * @throws IllegalArgumentException if the name is taken or a column read is unknown.
+     */
+    public ColumnGraph add(String name, Derivation derivation, String... in) {
+        return add(name, null, derivation, in);
+    }
+
+    /**
+     * Adds a stage whose column can be cached, see {@link #setCache(DerivedCache)}.
+     *
+     * @param name       the name of the stage.
+     * @param identity   how the column is derived from the columns it reads, with all
+     *                   parameters, for example {@code mov_avg(E, 125)}, or null if it
+     *                   must not be cached.
+     * @param derivation derives the column of the stage.
+     * @param in         the names of the columns the stage reads, input columns or
+     *                   stages added before.
+     * @return this graph.
+     * @throws IllegalArgumentException if the name is taken or a column read is unknown.
+     */
+    public ColumnGraph add(String name, String identity, Derivation derivation, String... in) {
+        if (inputs.contains(name) || stages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate column: " + name);
+        }
+        for (String col : in) {
+            if (!inputs.contains(col) && !stages.containsKey(col)) {
+                throw new IllegalArgumentException("Unknown column: " + col);
+            }
+        }
+        stages.put(name, new Stage(name, identity, derivation, Arrays.asList(in.clone())));
+        return this;
+    }
+
+    /**
+     * Sets the cache of the columns of the stages added with an identity.
+     *
+     * @param cache the cache, or null to compute all columns.
+     * @return this graph.
+     */
+    public ColumnGraph setCache(DerivedCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Returns the names of the stages, in the order they were added.
+     *
+     * @return the stage names.
+     */
+    public List<String> getStages() {
+        return Collections.unmodifiableList(new ArrayList<>(stages.keySet()));
+    }
+
+    /**
+     * Returns the names of the columns the given stage reads.
+     *
+     * @param name the name of the stage.
+     * @return the names of its columns, or null if there is no such stage.
+     */
+    public List<String> getInputs(String name) {
+        Stage stage = stages.get(name);
+        return (stage == null) ? null : Collections.unmodifiableList(stage.in);
+    }
+
+    /**
+     * Returns the names of the stages the given columns need: their own stages and
+     * those of the columns they read, transitively.
+     *
+     * @param columns the names of input columns or stages.
+     * @return the stage names, in the order they were added.
+     * @throws IllegalArgumentException if a column is unknown.
+     */
+    public List<String> getStagesFor(Collection<String> columns) {
+        Set<String> needed = new HashSet<>();
+        List<String> pending = new ArrayList<>(columns);
+        while (!pending.isEmpty()) {
+            String col = pending.remove(pending.size() - 1);
+            Stage stage = stages.get(col);
+            if (stage == null) {
+                if (!inputs.contains(col)) {
+                    throw new IllegalArgumentException("Unknown column: " + col);
+                }
+            } else if (needed.add(col)) {
+                pending.addAll(stage.in);
+            }
+        }
+        List<String> ans = new ArrayList<>(needed.size());
+        for (String name : stages.keySet()) {
+            if (needed.contains(name)) {
+                ans.add(name);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Runs all stages and waits for them.
+     *
+     * @param columns  the input columns, in the order of their names.
+     * @param listener receives the progress, or null.
+     * @return the column of each stage by name, in the order the stages were added.
+     */
+    public Map<String, Vector> run(List<Vector> columns, Listener listener) {
+        return run(columns, stages.keySet(), listener);
+    }
+
+    /**
+     * Runs only the stages the given columns need, see {@link #getStagesFor(Collection)},
+     * and waits for them.
+     *
+     * @param columns  the input columns, in the order of their names.
+     * @param outputs  the names of the columns to return, input columns or stages.
+     * @param listener receives the progress, or null.  The total is the number of
+     *                 stages run.
+     * @return the requested columns by name, in the order they were given.
+     * @throws IllegalArgumentException if a column is unknown.
+     */
+    public Map<String, Vector> run(List<Vector> columns, Collection<String> outputs, Listener listener) {
+        List<String> needed = getStagesFor(outputs);
+        Map<String, CompletableFuture<Vector>> futures = new HashMap<>();
+        for (int k = 0; k < inputs.size(); k++) {
+            futures.put(inputs.get(k), CompletableFuture.completedFuture(columns.get(k)));
+        }
+        Map<String, String> keys = (cache != null) ? keys(columns, needed) : new HashMap<>();
+        // from the last stage back, look up the columns used, and compute those not found.
+        Set<String> used = new HashSet<>(outputs);
+        List<String> computed = new ArrayList<>();
+        for (int k = needed.size() - 1; k >= 0; k--) {
+            Stage stage = stages.get(needed.get(k));
+            if (!used.contains(stage.name)) {
+                continue;
+            }
+            String key = keys.get(stage.name);
+            Vector hit = (key != null) ? cache.get(key) : null;
+            if (hit != null) {
+                futures.put(stage.name, CompletableFuture.completedFuture(hit));
+            } else {
+                computed.add(0, stage.name);
+                used.addAll(stage.in);
+            }
+        }
+        AtomicInteger done = new AtomicInteger();
+        int total = computed.size();
+        for (String name : computed) {
+            Stage stage = stages.get(name);
+            String key = keys.get(name);
+            List<CompletableFuture<Vector>> in = new ArrayList<>(stage.in.size());
+            for (String col : stage.in) {
+                in.add(futures.get(col));
+            }
+            CompletableFuture<Void> ready = CompletableFuture.allOf(in.toArray(new CompletableFuture<?>[0]));
+            futures.put(stage.name, ready.thenApplyAsync(ignored -> {
+                Vector[] args = new Vector[in.size()];
+                for (int k = 0; k < args.length; k++) {
+                    args[k] = in.get(k).join();
+                }
+                long t0 = System.nanoTime();
+                Vector ans = stage.derivation.derive(args);
+                if (key != null) {
+                    cache.put(key, ans);
+                }
+                if (listener != null) {
+                    listener.stageDone(stage.name, System.nanoTime() - t0, done.incrementAndGet(), total);
+                }
+                return ans;
+            }, Parallel.pool()));
+        }
+
+        Map<String, Vector> ans = new LinkedHashMap<>();
+        try {
+            for (String name : outputs) {
+                ans.put(name, futures.get(name).join());
+            }
+        } catch (CompletionException e) {
+            // rethrow what the stage threw.
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+        return ans;
+    }
+
+    /**
+     * Runs all stages one at a time, in the order they were added, on the calling
+     * thread, without the cache, for stages that share state, such as an {@link Arena}.
+     *
+     * @param columns the input columns, in the order of their names.
+     * @return the column of each stage by name, in the order the stages were added.
+     */
+    Map<String, Vector> runInOrder(List<Vector> columns) {
+        Map<String, Vector> cols = new HashMap<>();
+        for (int k = 0; k < inputs.size(); k++) {
+            cols.put(inputs.get(k), columns.get(k));
+        }
+        Map<String, Vector> ans = new LinkedHashMap<>();
+        for (Stage stage : stages.values()) {
+            Vector[] args = new Vector[stage.in.size()];
+            for (int k = 0; k < args.length; k++) {
+                args[k] = cols.get(stage.in.get(k));
+            }
+            Vector col = stage.derivation.derive(args);
+            cols.put(stage.name, col);
+            ans.put(stage.name, col);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns the cache keys of the given stages that have an identity and only read
+     * input columns and such stages.  The input columns are hashed once, if needed.
+     */
+    private Map<String, String> keys(List<Vector> columns, List<String> needed) {
+        Map<String, String> keys = new HashMap<>();
+        for (String name : needed) {
+            Stage stage = stages.get(name);
+            if (stage.identity == null) {
+                continue;
+            }
+            String[] in = new String[stage.in.size()];
+            boolean cacheable = true;
+            for (int k = 0; k < in.length && cacheable; k++) {
+                String col = stage.in.get(k);
+                int index = inputs.indexOf(col);
+                if (index >= 0 && !keys.containsKey(col)) {
+                    keys.put(col, DerivedCache.hash(columns.get(index)));
+                }
+                in[k] = keys.get(col);
+                cacheable = in[k] != null;
+            }
+            if (cacheable) {
+                keys.put(name, DerivedCache.key(stage.identity, in));
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,325 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of derived columns, addressed by their content: the key of a column is a
+ * hash of how it is derived and of the keys of the columns it reads, see
+ * {@link #key(String, String...)}, down to the input columns, whose keys are hashes of
+ * their values, see {@link #hash(Vector)}.  So a column is found again as long as its
+ * inputs have the same values, in any run, and never once they change.
+ * <p>
+ * The columns are kept in memory, least recently used first out once they take more
+ * than the given number of bytes, and, if a directory is given, also on disk, one file
+ * per key, where they stay until the directory is deleted: nothing evicts them from
+ * disk.  A column found on disk is loaded back into memory.  The cache holds its own
+ * copies, and returns copies, so the columns given and returned can be changed freely.
+ * A DerivedCache is thread-safe.
+ * </p>
+ * <p>
+ * File layout: a 16 byte header (magic, version, 1 if categorical, number of rows),
+ * then the values as little-endian doubles, or the codes of a categorical column as
+ * bytes.
+ * </p>
+ */
+public class DerivedCache {
+
+    private static final int MAGIC = 0x51584431;  // "QXD1"
+    /**
+     * The version of the file layout and of the derivations.  Part of every key, so
+     * bumping it invalidates all cached columns.
+     */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BUF_SIZE = 1 << 16;
+    private static final String SUFFIX = ".col";
+
+    private final long maxBytes;
+    private final File dir;
+    // the columns in memory, least recently used first.
+    private final LinkedHashMap<String, Vector> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long numBytes;
+    private long hits;
+    private long misses;
+    private String msg = "";
+
+    /**
+     * Create a new, empty DerivedCache.
+     *
+     * @param maxBytes the number of bytes of columns to keep in memory.
+     * @param dir      the directory of the columns on disk, created when the first one
+     *                 is saved, or null to keep them in memory only.
+     */
+    public DerivedCache(long maxBytes, File dir) {
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+    }
+
+    /**
+     * Returns a hash of the values of the given vector, with NaN equal to NaN, as a
+     * hexadecimal string.  It is 128 bits wide, and takes about one nanosecond per
+     * element.
+     *
+     * @param v the vector.
+     * @return the hash.
+     */
+    public static String hash(Vector v) {
+        int n = v.size();
+        long h1 = 0x9E3779B97F4A7C15L ^ n;
+        long h2 = 0xC2B2AE3D27D4EB4FL ^ n;
+        double[] block = new double[Math.min(1024, n)];
+        for (int s = 0; s < n; s += block.length) {
+            int e = Math.min(s + block.length, n);
+            v.copyTo(s, e, block, 0);
+            for (int i = 0; i < e - s; i++) {
+                long k = Double.doubleToLongBits(block[i]);
+                h1 = Long.rotateLeft(h1 ^ (k * 0x87C37B91114253D5L), 31) * 0x4CF5AD432745937FL;
+                h2 = Long.rotateLeft(h2 + (k * 0x52DCE729L), 27) * 0x9E3779B97F4A7C15L + h1;
+            }
+        }
+        return String.format("%016x%016x", mix(h1 ^ h2), mix(h2 + h1));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the key of a derived column.
+     *
+     * @param identity how the column is derived, with all parameters, for example
+     *                 {@code mov_avg(E, 125)}.
+     * @param inputs   the keys, or hashes, of the columns it reads, in order.
+     * @return the key, as a hexadecimal string.
+     */
+    public static String key(String identity, String... inputs) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        md.update((VERSION + "\n" + identity).getBytes(StandardCharsets.UTF_8));
+        for (String in : inputs) {
+            md.update(("\n" + in).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder b = new StringBuilder();
+        byte[] digest = md.digest();
+        for (int k = 0; k < 16; k++) {
+            b.append(String.format("%02x", digest[k]));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the column of the given key, from memory or disk.
+     *
+     * @param key the key.
+     * @return a copy of the column, or null if it is not cached.
+     */
+    public Vector get(String key) {
+        Vector v;
+        synchronized (this) {
+            v = memory.get(key);
+        }
+        if (v == null && dir != null) {
+            v = read(new File(dir, key + SUFFIX));
+            if (v != null) {
+                keep(key, v);
+            }
+        }
+        synchronized (this) {
+            if (v == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return v.copy();
+    }
+
+    /**
+     * Adds a column, in memory and on disk.
+     *
+     * @param key the key.
+     * @param v   the column, which is copied.
+     */
+    public void put(String key, Vector v) {
+        Vector copy = v.copy();
+        keep(key, copy);
+        if (dir != null) {
+            write(new File(dir, key + SUFFIX), copy);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the columns in memory.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getMemoryBytes() {
+        return numBytes;
+    }
+
+    /**
+     * Returns the number of columns found so far.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of columns not found so far.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all columns from memory.  The columns on disk stay.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        numBytes = 0;
+    }
+
+    /**
+     * Returns the error message of the last disk operation that failed, or an empty
+     * string.  A column that cannot be read or written is just not cached.
+     *
+     * @return the error message.
+     */
+    public synchronized String getErrMsg() {
+        return msg;
+    }
+
+    /**
+     * Keeps a column in memory, and drops the least recently used ones over the budget.
+     */
+    private synchronized void keep(String key, Vector v) {
+        long size = bytes(v);
+        if (size > maxBytes) {
+            return;
+        }
+        Vector old = memory.put(key, v);
+        numBytes += size - ((old == null) ? 0 : bytes(old));
+        Iterator<Map.Entry<String, Vector>> it = memory.entrySet().iterator();
+        while (numBytes > maxBytes && it.hasNext()) {
+            numBytes -= bytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(Vector v) {
+        return v.isCategorical() ? v.size() : 8L * v.size();
+    }
+
+    private Vector read(File f) {
+        if (!f.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+             FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            boolean categorical = ch.size() >= HEADER_SIZE && buf.getInt(8) == 1;
+            int n = (ch.size() >= HEADER_SIZE) ? buf.getInt(12) : -1;
+            if (n < 0 || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                    || ch.size() != HEADER_SIZE + (categorical ? 1L : 8L) * n) {
+                setErrMsg(String.format("Error: %s is not a cached column", f.getName()));
+                return null;
+            }
+            buf.position(HEADER_SIZE);
+            if (categorical) {
+                Vector v = Vector.allocateCategorical(n);
+                buf.get(v.codes(), 0, n);
+                return v;
+            }
+            return Vector.copyOf(buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer(), n);
+        } catch (IOException e) {
+            setErrMsg(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes a column under a temporary name, then moves it in place, so a column is
+     * never read half written.
+     */
+    private void write(File f, Vector v) {
+        File tmp = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            tmp = File.createTempFile(f.getName(), ".tmp", dir);
+            int n = v.size();
+            ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                 FileChannel ch = raf.getChannel()) {
+                buf.putInt(MAGIC).putInt(VERSION).putInt(v.isCategorical() ? 1 : 0).putInt(n);
+                if (v.isCategorical()) {
+                    byte[] codes = v.codes();
+                    for (int i = 0; i < n; ) {
+                        if (!buf.hasRemaining()) {
+                            flush(ch, buf);
+                        }
+                        int len = Math.min(buf.remaining(), n - i);
+                        buf.put(codes, i, len);
+                        i += len;
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        if (!buf.hasRemaining()) {
+                            flush(ch, buf);
+                        }
+                        buf.putDouble(v.get(i));
+                    }
+                }
+                flush(ch, buf);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            setErrMsg(String.format("Error: cannot write cached column %s\nMessage: %s", f.getName(), e.getMessage()));
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    private synchronized void setErrMsg(String msg) {
+        this.msg = msg;
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+}
@@ -0,0 +1,502 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * A lazy element-wise expression over {@link Vector}s.
+ * <p>
+ * Operations on an Expr only build a small expression tree.  {@link #eval()}
+ * evaluates the whole tree in one fused sweep, block by block, so intermediate
+ * results only ever live in small block buffers instead of full arrays.
+ * </p>
+ * <p>
+ * The result is the same as chaining the eager {@link Vector} operations: an
+ * intermediate result has the length of its left operand, and the values at the
+ * edges, where an operand is missing, are the same.
+ * </p>
+ * <p>
+ * Results with at least {@link Parallel#getThreshold()} elements are evaluated in
+ * parallel chunks of blocks.  Each evaluation uses its own block buffers, so an Expr
+ * may also be evaluated from several threads at once.
+ * </p>
+ */
+public abstract class Expr {
+
+    private static final int BLOCK = 1024;
+    private static final Kernels KERNELS = Kernels.get();
+
+    /**
+     * The result length.
+     */
+    final int n;
+    /**
+     * The first index where the result is present.
+     */
+    final int lo;
+    /**
+     * One past the last index where the result is present.
+     */
+    final int hi;
+
+    private Expr(int n, int lo, int hi) {
+        this.n = n;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /**
+     * Returns an expression that reads the given vector.
+     *
+     * @param v the vector.
+     * @return the expression.
+     */
+    public static Expr of(Vector v) {
+        return new Leaf(v);
+    }
+
+    /**
+     * Returns an expression of the given size that is the given value everywhere.
+     *
+     * @param val  the value.
+     * @param size the size.
+     * @return the expression.
+     */
+    public static Expr constant(double val, int size) {
+        return new Constant(val, size);
+    }
+
+    /**
+     * Returns a short description of the loops that evaluate expressions, such as
+     * {@code scalar} or {@code simd x4}.
+     *
+     * @return the description.
+     */
+    public static String kernels() {
+        return KERNELS.name();
+    }
+
+    /**
+     * Returns the size of the result.
+     *
+     * @return size of the result.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Evaluates this expression into a new vector, which is stored off the heap if it
+     * is large enough.
+     *
+     * @return the result vector.
+     */
+    public Vector eval() {
+        return eval(null);
+    }
+
+    /**
+     * Evaluates this expression into a new vector allocated from the given arena.
+     *
+     * @param arena the arena, or null to allocate a new vector.
+     * @return the result vector.
+     */
+    public Vector eval(Arena arena) {
+        Vector ans = (arena != null) ? arena.allocate(n) : Vector.allocate(n);
+        Parallel.forRange(0, n, BLOCK, (c, from, to) -> evalInto(ans, from, to));
+        return ans;
+    }
+
+    /**
+     * Evaluates this expression into a new categorical vector, which stores each element
+     * in one byte.
+     *
+     * @return the result vector.
+     * @throws IllegalArgumentException if the result holds a value other than NaN or a
+     *                                  whole number from -127 to 127.
+     */
+    public Vector evalCategorical() {
+        return evalCategorical(null);
+    }
+
+    /**
+     * Evaluates this expression into a new categorical vector allocated from the given
+     * arena.
+     *
+     * @param arena the arena, or null to allocate a new vector.
+     * @return the result vector.
+     * @throws IllegalArgumentException if the result holds a value other than NaN or a
+     *                                  whole number from -127 to 127.
+     */
+    public Vector evalCategorical(Arena arena) {
+        Vector ans = (arena != null) ? arena.allocateCategorical(n) : Vector.allocateCategorical(n);
+        Parallel.forRange(0, n, BLOCK, (c, from, to) -> evalInto(ans, from, to));
+        return ans;
+    }
+
+    /**
+     * Evaluates this expression into a new mask, which is set where the result is 1.
+     *
+     * @return the result mask.
+     */
+    public Mask evalMask() {
+        Mask ans = Mask.allocate(n);
+        // chunks are whole blocks, so no two chunks write the same word.
+        Parallel.forRange(0, n, BLOCK, (c, from, to) -> {
+            Scratch scratch = new Scratch();
+            double[] block = new double[Math.min(BLOCK, to - from)];
+            for (int s = from; s < to; s += BLOCK) {
+                int e = Math.min(s + BLOCK, to);
+                eval(s, e, block, 0, scratch);
+                ans.set(s, block, 0, e - s);
+            }
+        });
+        return ans;
+    }
+
+    /**
+     * Writes the result at indices {@code from} to {@code to} to {@code ans}, block by
+     * block.
+     */
+    private void evalInto(Vector ans, int from, int to) {
+        Scratch scratch = new Scratch();
+        double[] out = ans.array();
+        double[] block = (out == null) ? new double[Math.min(BLOCK, to - from)] : null;
+        for (int s = from; s < to; s += BLOCK) {
+            int e = Math.min(s + BLOCK, to);
+            if (out != null) {
+                eval(s, e, out, s, scratch);
+            } else {
+                eval(s, e, block, 0, scratch);
+                ans.write(s, block, 0, e - s);
+            }
+        }
+    }
+
+    /**
+     * Writes the result at indices {@code from} to {@code to} to {@code out}, starting
+     * at {@code pos}.  {@code to - from} is at most the block size.
+     */
+    abstract void eval(int from, int to, double[] out, int pos, Scratch scratch);
+
+    /**
+     * Returns the difference.
+     *
+     * @param v the expression to subtract.
+     * @return the difference.
+     */
+    public Expr sub(Expr v) {
+        return new Binary(Binary.SUB, 0, this, v);
+    }
+
+    /**
+     * Returns the sum.
+     *
+     * @param v the expression to add.
+     * @return the sum.
+     */
+    public Expr add(Expr v) {
+        return scaleAdd(1.0, v);
+    }
+
+    /**
+     * Returns this expression scaled, plus the given expression.
+     *
+     * @param scale the scale.
+     * @param v     the expression to add.
+     * @return the result.
+     */
+    public Expr scaleAdd(double scale, Expr v) {
+        return new Binary(Binary.SCALE_ADD, scale, this, v);
+    }
+
+    /**
+     * Returns the product.
+     *
+     * @param v the expression to multiply with.
+     * @return the product.
+     */
+    public Expr mult(Expr v) {
+        return new Binary(Binary.MULT, 0, this, v);
+    }
+
+    /**
+     * Returns the quotient.
+     *
+     * @param v the expression to divide by.
+     * @return the quotient.
+     */
+    public Expr div(Expr v) {
+        return new Binary(Binary.DIV, 0, this, v);
+    }
+
+    /**
+     * Returns the max of this expression and v.
+     *
+     * @param v the second expression.
+     * @return the max.
+     */
+    public Expr max(Expr v) {
+        return new Binary(Binary.MAX, 0, this, v);
+    }
+
+    /**
+     * Returns the min of this expression and v.
+     *
+     * @param v the second expression.
+     * @return the min.
+     */
+    public Expr min(Expr v) {
+        return new Binary(Binary.MIN, 0, this, v);
+    }
+
+    /**
+     * Returns (this expression > v), as 1 or 0.
+     *
+     * @param v the second expression.
+     * @return the comparison.
+     */
+    public Expr gt(Expr v) {
+        return new Binary(Binary.GT, 0, this, v);
+    }
+
+    /**
+     * Returns (this expression > thres), as 1 or 0.
+     *
+     * @param thres the threshold.
+     * @return the comparison.
+     */
+    public Expr gt(double thres) {
+        return new Unary(Unary.GT, thres, null, this);
+    }
+
+    /**
+     * Returns the inverse of this expression.
+     *
+     * @return 1 where this expression is 0, otherwise 0.
+     */
+    public Expr not() {
+        return new Unary(Unary.NOT, 0, null, this);
+    }
+
+    /**
+     * Returns this expression scaled by the given amount.
+     *
+     * @param scale the scale factor.
+     * @return the scaled expression.
+     */
+    public Expr scale(double scale) {
+        return new Unary(Unary.SCALE, scale, null, this);
+    }
+
+    /**
+     * Applies the given operation to all elements.
+     *
+     * @param op the operation to apply.
+     * @return the result.
+     */
+    public Expr apply(Op op) {
+        return new Unary(Unary.APPLY, 0, op, this);
+    }
+
+    /**
+     * Reads a vector.
+     */
+    private static class Leaf extends Expr {
+        private final Vector v;
+
+        Leaf(Vector v) {
+            super(v.size(), v.start(), v.end());
+            this.v = v;
+        }
+
+        @Override
+        void eval(int from, int to, double[] out, int pos, Scratch scratch) {
+            v.copyTo(from, to, out, pos);
+        }
+    }
+
+    /**
+     * A constant.
+     */
+    private static class Constant extends Expr {
+        private final double val;
+
+        Constant(double val, int n) {
+            super(n, 0, n);
+            this.val = val;
+        }
+
+        @Override
+        void eval(int from, int to, double[] out, int pos, Scratch scratch) {
+            fill(out, pos, pos + to - from, val);
+        }
+    }
+
+    /**
+     * An operation on one expression.  The result is NaN where the operand is missing.
+     */
+    private static class Unary extends Expr {
+        static final int GT = 0;
+        static final int NOT = 1;
+        static final int SCALE = 2;
+        static final int APPLY = 3;
+
+        private final int code;
+        private final double arg;
+        private final Op op;
+        private final Expr a;
+
+        Unary(int code, double arg, Op op, Expr a) {
+            super(a.n, 0, a.n);
+            this.code = code;
+            this.arg = arg;
+            this.op = op;
+            this.a = a;
+        }
+
+        @Override
+        void eval(int from, int to, double[] out, int pos, Scratch scratch) {
+            int s = Math.max(from, Math.min(a.lo, to));
+            int e = Math.max(s, Math.min(a.hi, to));
+            fill(out, pos, pos + s - from, Double.NaN);
+            fill(out, pos + e - from, pos + to - from, Double.NaN);
+            if (s == e) {
+                return;
+            }
+            a.eval(s, e, out, pos + s - from, scratch);
+            int k0 = pos + s - from;
+            int k1 = pos + e - from;
+            switch (code) {
+                case GT:
+                    KERNELS.gt(out, k0, k1, arg);
+                    break;
+                case NOT:
+                    KERNELS.not(out, k0, k1);
+                    break;
+                case SCALE:
+                    KERNELS.scale(out, k0, k1, arg);
+                    break;
+                default:
+                    for (int k = k0; k < k1; k++) {
+                        out[k] = op.apply(out[k]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * An operation on two expressions.  The left operand is evaluated into the output
+     * and the right one into a scratch block buffer, unless it is a vector, which is
+     * read in place if it is on the heap.
+     */
+    private static class Binary extends Expr {
+        static final int SUB = 0;
+        static final int MULT = 1;
+        static final int MAX = 2;
+        static final int MIN = 3;
+        static final int GT = 4;
+        static final int SCALE_ADD = 5;
+        static final int DIV = 6;
+
+        private final int code;
+        private final double scale;
+        private final Expr a;
+        private final Expr b;
+        private final int blo;
+        private final int bhi;
+
+        Binary(int code, double scale, Expr a, Expr b) {
+            super(a.n, 0, a.n);
+            this.code = code;
+            this.scale = scale;
+            this.a = a;
+            this.b = b;
+            blo = Math.min(a.n, Math.max(a.lo, b.lo));
+            bhi = Math.max(blo, Math.min(Math.min(a.hi, a.n), b.hi));
+        }
+
+        @Override
+        void eval(int from, int to, double[] out, int pos, Scratch scratch) {
+            int s = Math.max(from, Math.min(blo, to));
+            int e = Math.max(s, Math.min(bhi, to));
+            // gt and scaleAdd leave 0 at the edges, the others NaN.
+            double edge = (code == GT || code == SCALE_ADD) ? 0 : Double.NaN;
+            fill(out, pos, pos + s - from, edge);
+            fill(out, pos + e - from, pos + to - from, edge);
+            if (s == e) {
+                return;
+            }
+            int k0 = pos + s - from;
+            int k1 = pos + e - from;
+            a.eval(s, e, out, k0, scratch);
+            // y[k - d] is the right operand at the index written to out[k].
+            double[] y;
+            int d;
+            boolean pushed = !(b instanceof Leaf && ((Leaf) b).v.array() != null);
+            if (!pushed) {
+                Vector v = ((Leaf) b).v;
+                y = v.array();
+                d = k0 - s - v.offset();
+            } else {
+                y = scratch.push();
+                b.eval(s, e, y, 0, scratch);
+                d = k0;
+            }
+            switch (code) {
+                case SUB:
+                    KERNELS.sub(out, k0, k1, y, d);
+                    break;
+                case MULT:
+                    KERNELS.mult(out, k0, k1, y, d);
+                    break;
+                case MAX:
+                    KERNELS.max(out, k0, k1, y, d);
+                    break;
+                case MIN:
+                    KERNELS.min(out, k0, k1, y, d);
+                    break;
+                case GT:
+                    KERNELS.gt(out, k0, k1, y, d);
+                    break;
+                case DIV:
+                    KERNELS.div(out, k0, k1, y, d);
+                    break;
+                default:
+                    KERNELS.scaleAdd(out, k0, k1, scale, y, d);
+                    break;
+            }
+            if (pushed) {
+                scratch.pop();
+            }
+        }
+    }
+
+    /**
+     * The block buffers of one evaluation, used as a stack: a binary node takes a
+     * buffer for its right operand, which takes the next one for its own right
+     * operands, and so on.
+     */
+    private static final class Scratch {
+        private double[][] bufs = new double[0][];
+        private int depth;
+
+        double[] push() {
+            if (depth == bufs.length) {
+                bufs = Arrays.copyOf(bufs, depth + 1);
+                bufs[depth] = new double[BLOCK];
+            }
+            return bufs[depth++];
+        }
+
+        void pop() {
+            depth--;
+        }
+    }
+
+    private static void fill(double[] out, int from, int to, double val) {
+        for (int k = from; k < to; k++) {
+            out[k] = val;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+package data;
+
+import util.CategorizeMode;
+import util.Util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles derived columns written as formulas, in the notation of format.txt, into a
+ * {@link ColumnGraph}, so new columns can be added without a rebuild.
+ * <p>
+ * Each line defines one column, {@code NAME = formula}, from the input columns and the
+ * columns defined on the lines above.  Blank lines and everything after {@code #} are
+ * ignored.  For example:
+ * </p>
+ * <pre>
+ * G = E - B
+ * H = C - max(B, E)
+ * K = categ(B - E[i-1])
+ * P = M * N &lt; 0
+ * Q = cond(D &gt; C[i-1], D &gt; E[i-1], D[i-1] &gt; C, E[i-1] &gt; C)
+ * S = E - C[i+1]
+ * X = mov_avg(E, 5)
+ * </pre>
+ * <ul>
+ * <li>{@code E[i-1]} and {@code C[i+2]} read a column one row back and two rows ahead,
+ * as {@link Vector#shift(int)} does.</li>
+ * <li>{@code + - * /} and numbers are arithmetic, {@code max(a, b)}, {@code min(a, b)}
+ * and {@code abs(a)} too.</li>
+ * <li>{@code a > b} and {@code a < b} are conditions, 1 or 0, and can be combined with
+ * {@code &&}, {@code ||} and {@code !}.  A column defined by a condition is
+ * categorical.</li>
+ * <li>{@code cond(c1, c2, ...)} is 1 where c1 holds, else 2 where c2 holds, and so on,
+ * or 0, see {@link Vector#cond(Mask...)}.</li>
+ * <li>{@code categ(a)} bins a into -2 to 2 by its percentiles, in the mode set by
+ * {@link #setCategorizeMode(CategorizeMode)}, and {@code categ(a, n)} by those of the
+ * trailing window of n rows, see {@link Util#categorize(Vector, int, Arena)}.</li>
+ * <li>{@code mov_avg(a, n)}, {@code mov_sum}, {@code mov_min}, {@code mov_max},
+ * {@code mov_var} and {@code mov_std} are the rolling statistics of n rows, see
+ * {@link Vector#rollingMean(int)}.</li>
+ * </ul>
+ * <p>
+ * The arithmetic and conditions of a formula compile to one {@link Expr}, so they are
+ * evaluated in a single fused sweep, on the same loops as the hand-written columns of
+ * {@link PostProcess}, and give the same values.  Only the functions that need whole
+ * columns, categ, cond and the rolling statistics, evaluate their arguments first.
+ * </p>
+ */
+public class Formulas {
+
+    private final List<String> columns;
+    private CategorizeMode mode = CategorizeMode.EXACT;
+    private String errMsg;
+
+    /**
+     * Create a new Formulas instance.
+     *
+     * @param columns the names of the input columns of the graphs it creates.
+     */
+    public Formulas(String... columns) {
+        this.columns = Arrays.asList(columns.clone());
+    }
+
+    /**
+     * Sets how {@code categ(a)} bins the formulas compiled from now on.
+     *
+     * @param mode the mode, exact by default.
+     */
+    public void setCategorizeMode(CategorizeMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Reads and compiles the formulas of the given file.
+     *
+     * @param file the file name.
+     * @return the graph of the columns, or null on error, see {@link #getErrMsg()}.
+     */
+    public ColumnGraph read(String file) {
+        return read(file, new ColumnGraph(columns.toArray(new String[0])));
+    }
+
+    /**
+     * Reads the formulas of the given file and adds their stages to the given graph,
+     * whose columns they can read.
+     *
+     * @param file  the file name.
+     * @param graph the graph.
+     * @return the graph, or null on error, see {@link #getErrMsg()}.  The graph then
+     * holds the stages of the lines before the error.
+     */
+    public ColumnGraph read(String file, ColumnGraph graph) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            errMsg = "Cannot read " + file + ": " + e.getMessage();
+            return null;
+        }
+        return compile(lines, graph);
+    }
+
+    /**
+     * Compiles the given formulas, one per line.
+     *
+     * @param lines the lines.
+     * @return the graph of the columns, with one stage per formula in order, or null on
+     * error, see {@link #getErrMsg()}.
+     */
+    public ColumnGraph compile(List<String> lines) {
+        return compile(lines, new ColumnGraph(columns.toArray(new String[0])));
+    }
+
+    /**
+     * Compiles the given formulas, one per line, and adds their stages to the given
+     * graph, whose columns they can read.
+     *
+     * @param lines the lines.
+     * @param graph the graph.
+     * @return the graph, or null on error, see {@link #getErrMsg()}.  The graph then
+     * holds the stages of the lines before the error.
+     */
+    public ColumnGraph compile(List<String> lines, ColumnGraph graph) {
+        for (int k = 0; k < lines.size(); k++) {
+            String line = lines.get(k);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                compile(graph, line, mode);
+            } catch (IllegalArgumentException e) {
+                errMsg = "Line " + (k + 1) + ": " + e.getMessage();
+                return null;
+            }
+        }
+        errMsg = null;
+        return graph;
+    }
+
+    /**
+     * Returns the error message of the last read or compile.
+     *
+     * @return the error message, or null if there was no error.
+     */
+    public String getErrMsg() {
+        return errMsg;
+    }
+
+    /**
+     * Adds the stage of one formula to the graph.
+     */
+    private static void compile(ColumnGraph graph, String line, CategorizeMode mode) {
+        int eq = line.indexOf('=');
+        if (eq < 0) {
+            throw new IllegalArgumentException("Expected NAME = formula");
+        }
+        String name = line.substring(0, eq).trim();
+        if (!isName(name)) {
+            throw new IllegalArgumentException("Not a column name: " + name);
+        }
+        Parser parser = new Parser(line, eq + 1, mode);
+        Node root = parser.parse();
+        if (parser.refs.isEmpty()) {
+            throw new IllegalArgumentException("The formula reads no column");
+        }
+        // the identity of the column for the cache: the formula, and how categ bins if
+        // it depends on that.
+        String identity = "formula " + line.substring(eq + 1).replaceAll("\\s+", "")
+                + (parser.categorizes ? " " + mode : "");
+        graph.add(name, identity, in -> root.eval(in, in[0].size()), parser.refs.toArray(new String[0]));
+    }
+
+    private static boolean isName(String s) {
+        if (s.isEmpty() || !Character.isLetter(s.charAt(0))) {
+            return false;
+        }
+        for (int k = 1; k < s.length(); k++) {
+            if (!Character.isLetterOrDigit(s.charAt(k)) && s.charAt(k) != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A recursive descent parser of one formula.  The columns it reads are numbered in
+     * the order they first appear.
+     */
+    private static class Parser {
+        private final String text;
+        private final CategorizeMode mode;
+        private int pos;
+        final List<String> refs = new ArrayList<>();
+        // true if the formula has a categ without a window.
+        boolean categorizes;
+
+        Parser(String text, int pos, CategorizeMode mode) {
+            this.text = text;
+            this.pos = pos;
+            this.mode = mode;
+        }
+
+        Node parse() {
+            Node ans = or();
+            skip();
+            if (pos < text.length()) {
+                throw new IllegalArgumentException("Unexpected '" + text.charAt(pos) + "' at " + (pos + 1));
+            }
+            return ans;
+        }
+
+        private Node or() {
+            Node a = and();
+            while (accept("||")) {
+                a = Binary.of(Binary.OR, condition(a), condition(and()));
+            }
+            return a;
+        }
+
+        private Node and() {
+            Node a = comparison();
+            while (accept("&&")) {
+                a = Binary.of(Binary.AND, condition(a), condition(comparison()));
+            }
+            return a;
+        }
+
+        private Node comparison() {
+            Node a = sum();
+            if (accept(">")) {
+                return Binary.of(Binary.GT, a, sum());
+            } else if (accept("<")) {
+                Node b = sum();
+                return Binary.of(Binary.GT, b, a);
+            }
+            return a;
+        }
+
+        private Node sum() {
+            Node a = product();
+            while (true) {
+                if (accept("+")) {
+                    a = Binary.of(Binary.ADD, a, product());
+                } else if (accept("-")) {
+                    a = Binary.of(Binary.SUB, a, product());
+                } else {
+                    return a;
+                }
+            }
+        }
+
+        private Node product() {
+            Node a = unary();
+            while (true) {
+                if (accept("*")) {
+                    a = Binary.of(Binary.MULT, a, unary());
+                } else if (accept("/")) {
+                    a = Binary.of(Binary.DIV, a, unary());
+                } else {
+                    return a;
+                }
+            }
+        }
+
+        private Node unary() {
+            if (accept("-")) {
+                Node a = unary();
+                return (a instanceof Const) ? new Const(-((Const) a).val) : new Unary(Unary.NEG, a);
+            } else if (accept("!")) {
+                return new Unary(Unary.NOT, condition(unary()));
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            skip();
+            if (pos == text.length()) {
+                throw new IllegalArgumentException("Unexpected end of formula");
+            }
+            char c = text.charAt(pos);
+            if (Character.isDigit(c) || c == '.') {
+                return new Const(number());
+            } else if (accept("(")) {
+                Node a = or();
+                expect(")");
+                return a;
+            } else if (Character.isLetter(c)) {
+                String name = name();
+                return accept("(") ? call(name) : column(name);
+            }
+            throw new IllegalArgumentException("Unexpected '" + c + "' at " + (pos + 1));
+        }
+
+        private Node column(String name) {
+            int shift = 0;
+            if (accept("[")) {
+                skip();
+                if (!name().equals("i")) {
+                    throw new IllegalArgumentException("Expected " + name + "[i+n] or " + name + "[i-n]");
+                }
+                if (accept("+")) {
+                    shift = integer();
+                } else if (accept("-")) {
+                    shift = -integer();
+                }
+                expect("]");
+            }
+            int index = refs.indexOf(name);
+            if (index < 0) {
+                refs.add(name);
+                index = refs.size() - 1;
+            }
+            return new Column(index, shift);
+        }
+
+        private Node call(String name) {
+            List<Node> args = new ArrayList<>();
+            if (!accept(")")) {
+                do {
+                    args.add(or());
+                } while (accept(","));
+                expect(")");
+            }
+            switch (name) {
+                case "max":
+                    arity(name, args, 2);
+                    return Binary.of(Binary.MAX, args.get(0), args.get(1));
+                case "min":
+                    arity(name, args, 2);
+                    return Binary.of(Binary.MIN, args.get(0), args.get(1));
+                case "abs":
+                    arity(name, args, 1);
+                    return new Unary(Unary.ABS, args.get(0));
+                case "categ":
+                    if (args.size() == 1) {
+                        categorizes = true;
+                        return new Call(Call.CATEG, args, 0, mode);
+                    }
+                    arity(name, args, 2);
+                    return new Call(Call.CATEG, args.subList(0, 1), window(name, args.get(1)), null);
+                case "cond":
+                    if (args.isEmpty() || args.size() >= Byte.MAX_VALUE) {
+                        throw new IllegalArgumentException("cond takes 1 to " + (Byte.MAX_VALUE - 1) + " conditions");
+                    }
+                    for (Node arg : args) {
+                        condition(arg);
+                    }
+                    return new Call(Call.COND, args, 0, null);
+                default:
+                    int fn = Arrays.asList(Call.ROLLING).indexOf(name);
+                    if (fn < 0) {
+                        throw new IllegalArgumentException("Unknown function: " + name);
+                    }
+                    arity(name, args, 2);
+                    return new Call(Call.MOV + fn, args.subList(0, 1), window(name, args.get(1)), null);
+            }
+        }
+
+        private static void arity(String name, List<Node> args, int n) {
+            if (args.size() != n) {
+                throw new IllegalArgumentException(name + " takes " + n + " argument" + (n > 1 ? "s" : ""));
+            }
+        }
+
+        private static int window(String name, Node arg) {
+            double val = (arg instanceof Const) ? ((Const) arg).val : Double.NaN;
+            if (!(val >= 1 && val <= Integer.MAX_VALUE && val == Math.floor(val))) {
+                throw new IllegalArgumentException("The window of " + name + " must be a positive whole number");
+            }
+            return (int) val;
+        }
+
+        private static Node condition(Node a) {
+            if (!a.isCondition()) {
+                throw new IllegalArgumentException("Expected a condition, such as a > b");
+            }
+            return a;
+        }
+
+        private String name() {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private double number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            try {
+                return Double.parseDouble(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + text.substring(start, pos));
+            }
+        }
+
+        private int integer() {
+            skip();
+            int start = pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos || pos - start > 9) {
+                throw new IllegalArgumentException("Expected a row offset at " + (start + 1));
+            }
+            return Integer.parseInt(text.substring(start, pos));
+        }
+
+        private boolean accept(String token) {
+            skip();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("Expected '" + token + "' at " + (pos + 1));
+            }
+        }
+
+        private void skip() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * A node of a formula.
+     */
+    private abstract static class Node {
+
+        /**
+         * Returns true if the values are 1 or 0, as for a condition.
+         */
+        boolean isCondition() {
+            return false;
+        }
+
+        /**
+         * Returns the expression of this node over the columns the formula reads, which
+         * have n rows.
+         */
+        abstract Expr expr(Vector[] in, int n);
+
+        /**
+         * Returns the column of this node, which may be a view of one of the columns
+         * the formula reads.
+         */
+        Vector eval(Vector[] in, int n) {
+            Expr e = expr(in, n);
+            return isCondition() ? e.evalCategorical() : e.eval();
+        }
+    }
+
+    private static class Const extends Node {
+        final double val;
+
+        Const(double val) {
+            this.val = val;
+        }
+
+        @Override
+        Expr expr(Vector[] in, int n) {
+            return Expr.constant(val, n);
+        }
+    }
+
+    private static class Column extends Node {
+        private final int index;
+        private final int shift;
+
+        Column(int index, int shift) {
+            this.index = index;
+            this.shift = shift;
+        }
+
+        @Override
+        Expr expr(Vector[] in, int n) {
+            return view(in).lazy();
+        }
+
+        @Override
+        Vector eval(Vector[] in, int n) {
+            return view(in);
+        }
+
+        private Vector view(Vector[] in) {
+            return (shift == 0) ? in[index] : in[index].shift(shift);
+        }
+    }
+
+    private static class Unary extends Node {
+        static final int NEG = 0;
+        static final int NOT = 1;
+        static final int ABS = 2;
+
+        private static final Op ABS_OP = new Op() {
+            @Override
+            public double apply(double val) {
+                return Math.abs(val);
+            }
+        };
+
+        private final int code;
+        private final Node a;
+
+        Unary(int code, Node a) {
+            this.code = code;
+            this.a = a;
+        }
+
+        @Override
+        boolean isCondition() {
+            return code == NOT;
+        }
+
+        @Override
+        Expr expr(Vector[] in, int n) {
+            Expr x = a.expr(in, n);
+            switch (code) {
+                case NEG:
+                    return x.scale(-1);
+                case NOT:
+                    return x.not();
+                default:
+                    return x.apply(ABS_OP);
+            }
+        }
+    }
+
+    private static class Binary extends Node {
+        static final int ADD = 0;
+        static final int SUB = 1;
+        static final int MULT = 2;
+        static final int DIV = 3;
+        static final int MAX = 4;
+        static final int MIN = 5;
+        static final int GT = 6;
+        static final int AND = 7;
+        static final int OR = 8;
+
+        private final int code;
+        private final Node a;
+        private final Node b;
+
+        private Binary(int code, Node a, Node b) {
+            this.code = code;
+            this.a = a;
+            this.b = b;
+        }
+
+        /**
+         * Returns the node of the operation, folded if both operands are numbers.
+         */
+        static Node of(int code, Node a, Node b) {
+            if (a instanceof Const && b instanceof Const) {
+                double x = ((Const) a).val;
+                double y = ((Const) b).val;
+                switch (code) {
+                    case ADD:
+                        return new Const(x + y);
+                    case SUB:
+                        return new Const(x - y);
+                    case MULT:
+                        return new Const(x * y);
+                    case DIV:
+                        return new Const(x / y);
+                    case MAX:
+                        return new Const(Math.max(x, y));
+                    case MIN:
+                        return new Const(Math.min(x, y));
+                    default:
+                        break;
+                }
+            }
+            return new Binary(code, a, b);
+        }
+
+        @Override
+        boolean isCondition() {
+            return code >= GT;
+        }
+
+        @Override
+        Expr expr(Vector[] in, int n) {
+            // a number times or compared with a column needs no constant operand.
+            if (b instanceof Const && (code == MULT || code == GT)) {
+                double y = ((Const) b).val;
+                Expr x = a.expr(in, n);
+                return (code == MULT) ? x.scale(y) : x.gt(y);
+            } else if (a instanceof Const && (code == MULT || code == GT)) {
+                double x = ((Const) a).val;
+                Expr y = b.expr(in, n);
+                // x > y is -y > -x.
+                return (code == MULT) ? y.scale(x) : y.scale(-1).gt(-x);
+            }
+            Expr x = a.expr(in, n);
+            Expr y = b.expr(in, n);
+            switch (code) {
+                case ADD:
+                    return x.add(y);
+                case SUB:
+                    return x.sub(y);
+                case MULT:
+                case AND:
+                    return x.mult(y);
+                case DIV:
+                    return x.div(y);
+                case MAX:
+                case OR:
+                    return x.max(y);
+                case MIN:
+                    return x.min(y);
+                default:
+                    return x.gt(y);
+            }
+        }
+    }
+
+    /**
+     * A function of whole columns.
+     */
+    private static class Call extends Node {
+        static final int CATEG = 0;
+        static final int COND = 1;
+        static final int MOV = 2;
+        static final String[] ROLLING = {"mov_avg", "mov_sum", "mov_min", "mov_max", "mov_var", "mov_std"};
+
+        private final int fn;
+        private final Node[] args;
+        private final int window;
+        // how categ bins without a window.
+        private final CategorizeMode mode;
+
+        Call(int fn, List<Node> args, int window, CategorizeMode mode) {
+            this.fn = fn;
+            this.args = args.toArray(new Node[0]);
+            this.window = window;
+            this.mode = mode;
+        }
+
+        @Override
+        Expr expr(Vector[] in, int n) {
+            return eval(in, n).lazy();
+        }
+
+        @Override
+        Vector eval(Vector[] in, int n) {
+            if (fn == COND) {
+                Mask[] masks = new Mask[args.length];
+                for (int k = 0; k < masks.length; k++) {
+                    masks[k] = args[k].expr(in, n).evalMask();
+                }
+                return Vector.cond(masks);
+            }
+            Vector v = args[0].eval(in, n);
+            if (fn == CATEG) {
+                return (window > 0) ? Util.categorize(v, window, null) : mode.categorize(v, null);
+            }
+            switch (ROLLING[fn - MOV]) {
+                case "mov_avg":
+                    return v.rollingMean(window);
+                case "mov_sum":
+                    return v.rollingSum(window);
+                case "mov_min":
+                    return v.rollingMin(window);
+                case "mov_max":
+                    return v.rollingMax(window);
+                case "mov_var":
+                    return v.rollingVariance(window);
+                default:
+                    return v.rollingStd(window);
+            }
+        }
+    }
+}
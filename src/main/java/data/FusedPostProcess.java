@@ -0,0 +1,266 @@
+package data;
+
+import util.Util;
+
+import java.util.List;
+
+
+/**
+ * Calculates the same derived columns as {@link PostProcess}, in one pass over the rows.
+ * <p>
+ * {@link PostProcess} evaluates each column, and each mask behind Q, R and W, as a
+ * separate sweep over the whole input.  This class reads the base columns in blocks and
+ * computes G to J, the differences behind K to O, Q, R and S to W of each block while
+ * it is in the cache.  Only the categorizations K to O, which need the percentiles of
+ * whole columns, P, which needs M and N, and the moving averages X to AA, which are
+ * rolling sums carried in row order, take passes of their own.  On large inputs the
+ * rows are split into chunks that run in parallel.
+ * </p>
+ * <p>
+ * The results equal those of {@link PostProcess} cell for cell.
+ * </p>
+ */
+public class FusedPostProcess {
+
+    private static final int BLOCK = 1024;
+
+    /**
+     * The windows of the moving averages X, Y, Z and AA.
+     */
+    private static final int[] WINDOWS = {5, 10, 125, 250};
+
+    // the columns the row pass writes.
+    private static final int G = 0;
+    private static final int H = 1;
+    private static final int I = 2;
+    private static final int J = 3;
+    private static final int K0 = 4;
+    private static final int M0 = 5;
+    private static final int N0 = 6;
+    private static final int O0 = 7;
+    private static final int Q = 8;
+    private static final int R = 9;
+    private static final int S = 10;
+    private static final int T = 11;
+    private static final int U = 12;
+    private static final int V = 13;
+    private static final int W = 14;
+    private static final int NUM_COLUMNS = W + 1;
+
+    /**
+     * This method calculates all the derivated columns
+     *
+     * @param data the excel data.
+     */
+    public static void postProcess(List<Vector> data) {
+        try (Arena temps = new Arena()) {
+            postProcess(data, null, temps);
+        }
+    }
+
+    /**
+     * This method calculates all the derivated columns, allocating them and all
+     * temporaries from the given arena, like {@link PostProcess#postProcess(List, Arena)}.
+     *
+     * @param data  the excel data.
+     * @param arena the arena to allocate from.
+     */
+    public static void postProcess(List<Vector> data, Arena arena) {
+        postProcess(data, arena, arena);
+    }
+
+    /**
+     * Calculates the derived columns, allocating them from {@code out} (or the heap, if
+     * null) and temporaries from {@code temps}, which are released as soon as possible.
+     */
+    private static void postProcess(List<Vector> data, Arena out, Arena temps) {
+        Vector[] base = {data.get(1), data.get(2), data.get(3), data.get(4), data.get(5)};
+        int size = base[3].size();
+
+        Vector[] cols = new Vector[NUM_COLUMNS];
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+            if (col == Q || col == R || col == W) {
+                cols[col] = (out != null) ? out.allocateCategorical(size) : Vector.allocateCategorical(size);
+            } else if (col >= K0 && col <= O0) {
+                cols[col] = temps.allocate(size);
+            } else {
+                cols[col] = (out != null) ? out.allocate(size) : Vector.allocate(size);
+            }
+        }
+
+        int[] bounds = Parallel.isParallel(size) ? Parallel.split(0, size, BLOCK) : new int[]{0, size};
+        Rows rows = new Rows(base, cols);
+        if (bounds.length > 2) {
+            Parallel.forChunks(bounds, rows);
+        } else {
+            rows.run(0, 0, size);
+        }
+
+        Vector k = Util.categorize(cols[K0], out);
+        temps.release(cols[K0]);
+        Vector l = Util.categorize(cols[G], out);
+        Vector m = Util.categorize(cols[M0], out);
+        temps.release(cols[M0]);
+        Vector n = Util.categorize(cols[N0], out);
+        temps.release(cols[N0]);
+        Vector o = Util.categorize(cols[O0], out);
+        temps.release(cols[O0]);
+        // p = 'pv' if p[i] < 0 else ''
+        Vector p = m.lazy().mult(n.lazy()).apply(new Op() {
+            @Override
+            public double apply(double val) {
+                return val < 0 ? 1 : 0;
+            }
+        }).evalCategorical(out);
+
+        data.add(cols[G]);
+        data.add(cols[H]);
+        data.add(cols[I]);
+        data.add(cols[J]);
+        data.add(k);
+        data.add(l);
+        data.add(m);
+        data.add(n);
+        data.add(o);
+        data.add(p);
+        for (int col = Q; col < NUM_COLUMNS; col++) {
+            data.add(cols[col]);
+        }
+        for (int win : WINDOWS) {
+            data.add(base[3].rollingMean(win, out));
+        }
+    }
+
+    /**
+     * The row pass over one chunk.  Each block of rows is copied from the base columns,
+     * with one row before and two after it, and computed by a few short loops while it
+     * is in the cache.  The results go straight to the columns on the heap, and through
+     * a block buffer to the others.
+     */
+    private static class Rows implements Parallel.Range {
+        private final Vector[] base;
+        private final Vector[] cols;
+
+        Rows(Vector[] base, Vector[] cols) {
+            this.base = base;
+            this.cols = cols;
+        }
+
+        @Override
+        public void run(int chunk, int from, int to) {
+            double[][] in = new double[base.length][BLOCK + 3];
+            double[][] out = new double[NUM_COLUMNS][];
+            boolean[] buffered = new boolean[NUM_COLUMNS];
+            int[] at = new int[NUM_COLUMNS];
+            for (int col = 0; col < NUM_COLUMNS; col++) {
+                out[col] = cols[col].array();
+                buffered[col] = out[col] == null;
+                if (buffered[col]) {
+                    out[col] = new double[BLOCK];
+                }
+            }
+            for (int s = from; s < to; s += BLOCK) {
+                int len = Math.min(BLOCK, to - s);
+                for (int col = 0; col < base.length; col++) {
+                    base[col].copyTo(s - 1, s + len + 2, in[col], 0);
+                }
+                for (int col = 0; col < NUM_COLUMNS; col++) {
+                    at[col] = buffered[col] ? 0 : s;
+                }
+                block(len, in, out, at);
+                for (int col = 0; col < NUM_COLUMNS; col++) {
+                    if (buffered[col]) {
+                        cols[col].write(s, out[col], 0, len);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Computes a block of {@code len} rows from their inputs, {@code in[.][x]} being
+         * the row {@code x - 1} of the block, to {@code out[col][at[col]]} onwards.
+         */
+        private static void block(int len, double[][] in, double[][] out, int[] at) {
+            double[] open = in[0];
+            double[] max = in[1];
+            double[] min = in[2];
+            double[] close = in[3];
+            double[] volume = in[4];
+
+            double[] g = out[G];
+            double[] j = out[J];
+            double[] k0 = out[K0];
+            double[] m0 = out[M0];
+            double[] n0 = out[N0];
+            double[] o0 = out[O0];
+            int g1 = at[G];
+            int j1 = at[J];
+            int k1 = at[K0];
+            int m1 = at[M0];
+            int n1 = at[N0];
+            int o1 = at[O0];
+            for (int k = 0, x = 1; k < len; k++, x++) {
+                g[g1 + k] = close[x] - open[x];                                     // close - open
+                j[j1 + k] = max[x] - min[x];                                        // max - min
+                k0[k1 + k] = open[x] - close[x - 1];                                // open - close[-1]
+                m0[m1 + k] = close[x] - close[x - 1];                               // close - close[-1]
+                n0[n1 + k] = volume[x] - volume[x - 1];                             // volume - volume[-1]
+                o0[o1 + k] = open[x + 1] - close[x];                                // open[+1] - close
+            }
+
+            double[] h = out[H];
+            double[] i = out[I];
+            int h1 = at[H];
+            int i1 = at[I];
+            for (int k = 0, x = 1; k < len; k++, x++) {
+                h[h1 + k] = Math.max(open[x], close[x]) * -1 + max[x];              // max - max(open, close)
+                i[i1 + k] = Math.min(open[x], close[x]) - min[x];                   // min(open, close) - min
+            }
+
+            double[] sv = out[S];
+            double[] tv = out[T];
+            double[] uv = out[U];
+            double[] vv = out[V];
+            int s1 = at[S];
+            int t1 = at[T];
+            int u1 = at[U];
+            int v1 = at[V];
+            for (int k = 0, x = 1; k < len; k++, x++) {
+                sv[s1 + k] = close[x] - max[x + 1];                                 // close - max[+1]
+                tv[t1 + k] = close[x] - min[x + 1];                                 // close - min[+1]
+                uv[u1 + k] = close[x] - max[x + 2];                                 // close - max[+2]
+                vv[v1 + k] = close[x] - min[x + 2];                                 // close - min[+2]
+            }
+
+            double[] q = out[Q];
+            double[] r = out[R];
+            double[] w = out[W];
+            int q1 = at[Q];
+            int r1 = at[R];
+            int w1 = at[W];
+            for (int k = 0, x = 1; k < len; k++, x++) {
+                // q = DY if min > max[-1], LY if min > close[-1], DG if min[-1] > max,
+                //     LG if close[-1] > max.  The first condition that holds wins, so it
+                //     is tested last.
+                double code = (close[x - 1] > max[x]) ? 4 : 0;
+                code = (min[x - 1] > max[x]) ? 3 : code;
+                code = (min[x] > close[x - 1]) ? 2 : code;
+                q[q1 + k] = (min[x] > max[x - 1]) ? 1 : code;
+
+                // r = HH if max > max[-1], min > min[-1]
+                //     LL if max < max[-1], min < min[-1]
+                //     GS if max < max[-1], min > min[-1]
+                //     BU if max > max[-1], min < min[-1]
+                boolean higher = max[x] > max[x - 1];
+                boolean lower = min[x] > min[x - 1];
+                r[r1 + k] = higher ? (lower ? 1 : 4) : (lower ? 3 : 2);
+
+                // w = B if S + T <= 0 && U + V <= 0, S if S + T > 0 && U + V > 0,
+                //     V if S + T <= 0 && U + V > 0, L if S + T > 0 && U + V <= 0
+                boolean near = sv[s1 + k] * 1.0 + tv[t1 + k] > 0;
+                boolean far = uv[u1 + k] * 1.0 + vv[v1 + k] > 0;
+                w[w1 + k] = near ? (far ? 2 : 4) : (far ? 3 : 1);
+            }
+        }
+    }
+}
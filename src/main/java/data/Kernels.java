@@ -0,0 +1,112 @@
+package data;
+
+/**
+ * The inner loops of the element-wise operations of {@link Expr}.
+ * <p>
+ * Each loop updates {@code x[k]} in place for {@code from <= k < to}, and binary
+ * loops read the right operand at {@code y[k - d]}.  This class runs plain scalar
+ * loops.  If the {@code simd} build profile is used and the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}, {@link #get()} returns a subclass that
+ * runs the same loops on SIMD lanes, with the same results.  Set the system
+ * property {@code qexcel.simd} to false to always use the scalar loops.
+ * </p>
+ */
+class Kernels {
+
+    private static final Kernels INSTANCE = load();
+
+    /**
+     * Returns the fastest kernels available on this JVM.
+     */
+    static Kernels get() {
+        return INSTANCE;
+    }
+
+    private static Kernels load() {
+        if (Boolean.parseBoolean(System.getProperty("qexcel.simd", "true"))) {
+            try {
+                Kernels k = (Kernels) Class.forName("data.SimdKernels").getDeclaredConstructor().newInstance();
+                if (k.isSupported()) {
+                    return k;
+                }
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not built with the simd profile, or the incubator module is not enabled.
+            }
+        }
+        return new Kernels();
+    }
+
+    /**
+     * Returns true if these kernels can run on this machine.
+     */
+    boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Returns a short description of these kernels.
+     */
+    String name() {
+        return "scalar";
+    }
+
+    void sub(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = x[k] - y[k - d];
+        }
+    }
+
+    void mult(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = x[k] * y[k - d];
+        }
+    }
+
+    void div(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = x[k] / y[k - d];
+        }
+    }
+
+    void max(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = Math.max(x[k], y[k - d]);
+        }
+    }
+
+    void min(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = Math.min(x[k], y[k - d]);
+        }
+    }
+
+    void gt(double[] x, int from, int to, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = (x[k] > y[k - d]) ? 1 : 0;
+        }
+    }
+
+    void scaleAdd(double[] x, int from, int to, double scale, double[] y, int d) {
+        for (int k = from; k < to; k++) {
+            x[k] = x[k] * scale + y[k - d];
+        }
+    }
+
+    void gt(double[] x, int from, int to, double thres) {
+        for (int k = from; k < to; k++) {
+            x[k] = (x[k] > thres) ? 1 : 0;
+        }
+    }
+
+    void not(double[] x, int from, int to) {
+        for (int k = from; k < to; k++) {
+            x[k] = (x[k] == 0) ? 1 : 0;
+        }
+    }
+
+    void scale(double[] x, int from, int to, double scale) {
+        for (int k = from; k < to; k++) {
+            x[k] = scale * x[k];
+        }
+    }
+}
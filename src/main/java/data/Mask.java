@@ -0,0 +1,171 @@
+package data;
+
+/**
+ * A 1-D boolean vector, packed 64 elements per {@code long} word.
+ * <p>
+ * Masks hold the results of comparisons, such as {@code a.lazy().gt(b.lazy()).evalMask()},
+ * in 1/64 of the memory of a {@link Vector}, and the logical operations work on whole
+ * words.  Elements past the size of a mask are false, so operations on two masks of
+ * different sizes treat the missing elements of the shorter one as false.  The result
+ * has the size of this mask, like the element-wise operations of {@link Vector}.
+ * </p>
+ */
+public class Mask {
+
+    private final long[] words;
+    private final int n;
+
+    Mask(long[] words, int n) {
+        this.words = words;
+        this.n = n;
+    }
+
+    /**
+     * Returns a new mask of the given size with no element set.
+     */
+    static Mask allocate(int size) {
+        return new Mask(new long[(size + 63) >>> 6], size);
+    }
+
+    /**
+     * Returns a mask that is set where the given vector is 1.
+     *
+     * @param v the vector.
+     * @return the new mask.
+     */
+    public static Mask of(Vector v) {
+        return v.lazy().evalMask();
+    }
+
+    /**
+     * Returns the size of this mask.
+     *
+     * @return size of this mask.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Returns the ith element.
+     *
+     * @param i the index
+     * @return true if the element is set.  False if {@code i} is out of range.
+     */
+    public boolean get(int i) {
+        return i >= 0 && i < n && (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Returns the word with elements {@code 64 * w} to {@code 64 * w + 63}, or 0 if it is
+     * past the end of this mask.
+     */
+    long word(int w) {
+        return (w < words.length) ? words[w] : 0;
+    }
+
+    /**
+     * Sets the bits of the given elements of this mask, from a block of values that are 1
+     * where the element is set.
+     */
+    void set(int from, double[] block, int pos, int len) {
+        for (int i = 0; i < len; i++) {
+            if (block[pos + i] == 1) {
+                int k = from + i;
+                words[k >>> 6] |= 1L << k;
+            }
+        }
+    }
+
+    /**
+     * Returns this mask and m.
+     *
+     * @param m the second mask.
+     * @return the new mask.
+     */
+    public Mask and(Mask m) {
+        Mask ans = allocate(n);
+        for (int w = 0; w < words.length; w++) {
+            ans.words[w] = words[w] & m.word(w);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns this mask or m.
+     *
+     * @param m the second mask.
+     * @return the new mask.
+     */
+    public Mask or(Mask m) {
+        Mask ans = allocate(n);
+        for (int w = 0; w < words.length; w++) {
+            ans.words[w] = words[w] | m.word(w);
+        }
+        ans.clearTail();
+        return ans;
+    }
+
+    /**
+     * Returns this mask and not m.
+     *
+     * @param m the second mask.
+     * @return the new mask.
+     */
+    public Mask andNot(Mask m) {
+        Mask ans = allocate(n);
+        for (int w = 0; w < words.length; w++) {
+            ans.words[w] = words[w] & ~m.word(w);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns the inverse of this mask.
+     *
+     * @return the new mask.
+     */
+    public Mask not() {
+        Mask ans = allocate(n);
+        for (int w = 0; w < words.length; w++) {
+            ans.words[w] = ~words[w];
+        }
+        ans.clearTail();
+        return ans;
+    }
+
+    /**
+     * Returns the number of elements that are set.
+     *
+     * @return the population count.
+     */
+    public int cardinality() {
+        int ans = 0;
+        for (long word : words) {
+            ans += Long.bitCount(word);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns this mask as a vector of 1 and 0.
+     *
+     * @return the new vector.
+     */
+    public Vector toVector() {
+        double[] ans = new double[n];
+        for (int i = 0; i < n; i++) {
+            ans[i] = ((words[i >>> 6] & (1L << i)) != 0) ? 1 : 0;
+        }
+        return new Vector(ans);
+    }
+
+    /**
+     * Clears the bits past the size of this mask in the last word.
+     */
+    private void clearTail() {
+        if ((n & 63) != 0) {
+            words[words.length - 1] &= -1L >>> (64 - (n & 63));
+        }
+    }
+}
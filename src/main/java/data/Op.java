@@ -1,7 +1,8 @@
 package data;
 
 /**
- * An operation on a floating point number.
+ * An operation on a floating point number.  On large vectors the operation is applied
+ * from several threads at once, see {@link Parallel}, so it should not keep state.
  */
 public abstract class Op {
 
@@ -0,0 +1,143 @@
+package data;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decides when {@link Vector} operations run in parallel.
+ * <p>
+ * Operations on vectors with at least the parallel threshold of elements are split
+ * into chunks that run on a {@link ForkJoinPool}.  Element-wise operations give
+ * bit-identical results either way.  {@link Vector#integral()} runs as a two-pass
+ * prefix scan, which adds in a different order, so its results may differ in the
+ * last bits.
+ * </p>
+ * <p>
+ * The threshold can be set with the system property {@code qexcel.parallel.threshold}
+ * or with {@link #setThreshold(int)}, and defaults to 1M elements.  The common pool is
+ * used unless another pool is set.  On a single core everything runs sequentially.
+ * </p>
+ */
+public class Parallel {
+
+    /**
+     * The smallest chunk worth running as a separate task.
+     */
+    private static final int GRAIN = 1 << 14;
+
+    private static volatile int threshold = Integer.getInteger("qexcel.parallel.threshold", 1 << 20);
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Sets the number of elements from which operations run in parallel.
+     *
+     * @param numElements the threshold.  {@link Integer#MAX_VALUE} runs everything sequentially.
+     */
+    public static void setThreshold(int numElements) {
+        threshold = numElements;
+    }
+
+    /**
+     * Returns the number of elements from which operations run in parallel.
+     *
+     * @return the threshold.
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the pool that parallel operations run on.
+     *
+     * @param forkJoinPool the pool, or null to use the common pool.
+     */
+    public static void setPool(ForkJoinPool forkJoinPool) {
+        pool = (forkJoinPool != null) ? forkJoinPool : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Returns the pool that parallel operations run on.
+     */
+    static ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * Returns true if an operation on the given number of elements runs in parallel.
+     *
+     * @param n the number of elements.
+     * @return true for parallel execution.
+     */
+    public static boolean isParallel(int n) {
+        return n >= threshold && n > GRAIN && pool.getParallelism() > 1;
+    }
+
+    /**
+     * Runs the body on the range from {@code from} to {@code to}.  If the range is large
+     * enough, it is split into chunks whose bounds are multiples of {@code align} after
+     * {@code from}, and the chunks run in parallel.
+     */
+    static void forRange(int from, int to, int align, Range body) {
+        if (!isParallel(to - from)) {
+            body.run(0, from, to);
+            return;
+        }
+        forChunks(split(from, to, align), body);
+    }
+
+    /**
+     * Returns the bounds of the chunks to split the range from {@code from} to
+     * {@code to} into, for a parallel operation.  Chunk {@code c} runs from
+     * {@code bounds[c]} to {@code bounds[c + 1]}.
+     */
+    static int[] split(int from, int to, int align) {
+        int n = to - from;
+        int m = Math.max(1, Math.min(4 * pool.getParallelism(), n / GRAIN));
+        int[] bounds = new int[m + 1];
+        for (int c = 0; c < m; c++) {
+            bounds[c] = from + (int) ((long) n * c / m / align * align);
+        }
+        bounds[m] = to;
+        return bounds;
+    }
+
+    /**
+     * Runs the body on each of the given chunks in parallel, and returns when all are done.
+     */
+    static void forChunks(int[] bounds, Range body) {
+        pool.invoke(new Chunks(bounds, 0, bounds.length - 1, body));
+    }
+
+    /**
+     * A loop over one chunk of a range.
+     */
+    interface Range {
+        void run(int chunk, int from, int to);
+    }
+
+    private static class Chunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] bounds;
+        private final int lo;
+        private final int hi;
+        private final Range body;
+
+        Chunks(int[] bounds, int lo, int hi, Range body) {
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                body.run(lo, bounds[lo], bounds[hi]);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Chunks(bounds, lo, mid, body), new Chunks(bounds, mid, hi, body));
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package data;
 
-import util.Util;
+import util.CategorizeMode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -11,112 +13,198 @@ import java.util.List;
  */
 public class PostProcess {
 
+    /**
+     * The prefix of the identities of the columns of {@link #graph()}.
+     */
+    private static final String ID = "PostProcess ";
+
+    /**
+     * The names of the derived columns, in the order they are added to the data.
+     */
+    private static final String[] OUTPUTS = {"G", "H", "I", "J", "K", "L", "M", "N", "O", "P",
+            "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z", "AA"};
+
+    /**
+     * Returns the names of the columns of the data once post-processed, A to AA: the
+     * excel columns, then the derived ones.
+     *
+     * @return the column names.
+     */
+    public static List<String> columnNames() {
+        List<String> ans = new ArrayList<>(Arrays.asList("A", "B", "C", "D", "E", "F"));
+        ans.addAll(Arrays.asList(OUTPUTS));
+        return ans;
+    }
+
     /**
      * This method calculates all the derivated columns
      *
      * @param data the excel data.
      */
     public static void postProcess(List<Vector> data) {
+        postProcess(data, (ColumnGraph.Listener) null);
+    }
+
+    /**
+     * This method calculates all the derivated columns, allocating them and all
+     * temporaries from the given arena.  The derived columns stay valid until they are
+     * released, so an arena reused across inputs of similar size, with
+     * {@link Arena#releaseAll()} after each one, allocates close to nothing.  The stages
+     * of {@link #graph()} are run one at a time, as they share the arena.
+     *
+     * @param data  the excel data.
+     * @param arena the arena to allocate from.
+     */
+    public static void postProcess(List<Vector> data, Arena arena) {
+        Map<String, Vector> cols = graph(CategorizeMode.EXACT, arena).runInOrder(data.subList(0, 6));
+        for (String name : OUTPUTS) {
+            data.add(cols.get(name));
+        }
+    }
 
+    /**
+     * This method calculates all the derivated columns, running the stages of
+     * {@link #graph()} that do not depend on each other concurrently.
+     *
+     * @param data     the excel data.
+     * @param listener receives the progress of each column, or null.
+     */
+    public static void postProcess(List<Vector> data, ColumnGraph.Listener listener) {
+        Map<String, Vector> cols = graph().run(new ArrayList<>(data.subList(0, 6)), listener);
+        for (String name : OUTPUTS) {
+            data.add(cols.get(name));
+        }
+    }
 
-        Vector b, c, d, e, f, g, h, i, j, k, l, m, n, o, p;
-        Vector q, r, s, t, u, v, w, x, y, z, aa;
-        Vector q0, q1, q2, q3, k0, l0, m0, n0, o0, ed1, cd1, dd1;
-        Vector r0, r1, r2, r3, temp0, temp1, temp2, temp3, temp4, temp5, ca1, da1, ca2, da2;
-        b = data.get(1);  // open
-        c = data.get(2);  // max
-        d = data.get(3);  // min
-        e = data.get(4);  // close
-        f = data.get(5);  // volume
-
-        ed1 = e.shift(-1);   // close[-1]
-        cd1 = c.shift(-1);   // max[-1]
-        ca1 = c.shift(1);  // max[+1]
-        ca2 = c.shift(2);  // max[+2]
-        dd1 = d.shift(-1);   // min[-1]
-        da1 = d.shift(1);  // min[+1]
-        da2 = d.shift(2);  // min[+2]
-
-        g = e.sub(b);                               // close - open
-        h = b.max(e).scaleAddi(-1, c);              // max - max(open, close)
-        i = b.min(e).subi(d);                       // min(open, close) - min
-        j = c.sub(d);                               // max - min
-        k0 = b.sub(ed1);                            // open - close[-1]
-        l0 = g;
-        m0 = e.sub(ed1);                            // close - close[-1]
-        n0 = f.sub(f.shift(-1));                    // volume - volume[-1]
-        o0 = b.shift(1).sub(e);                     // open[+1] - close
-        k = Util.categorize(k0);
-        l = Util.categorize(l0);
-        m = Util.categorize(m0);
-        n = Util.categorize(n0);
-        o = Util.categorize(o0);
-        // p = 'pv' if p[i] < 0 else ''
-        p = m.mult(n).applyi(new Op() {
+    /**
+     * This method calculates only the given columns, and the derived columns they read,
+     * running the stages of {@link #graph()} that do not depend on each other
+     * concurrently.  For example, W only needs S to V, which only read C, D and E.
+     *
+     * @param data     the excel data, columns A to F.
+     * @param columns  the names of the columns to return, see {@link #columnNames()}.
+     *                 Excel columns are returned as they are.
+     * @param listener receives the progress of each column computed, or null.
+     * @return the columns, in the given order.
+     * @throws IllegalArgumentException if a column is unknown.
+     */
+    public static List<Vector> postProcess(List<Vector> data, List<String> columns, ColumnGraph.Listener listener) {
+        Map<String, Vector> cols = graph().run(data.subList(0, 6), columns, listener);
+        return new ArrayList<>(cols.values());
+    }
+
+    /**
+     * Returns the derivations of the columns G to AA from the excel columns A to F, as
+     * described in format.txt, as a graph.
+     *
+     * @return the graph.
+     */
+    public static ColumnGraph graph() {
+        return graph(CategorizeMode.EXACT);
+    }
+
+    /**
+     * Returns the derivations of the columns G to AA from the excel columns A to F, as
+     * a graph whose stages K to O bin in the given mode.
+     *
+     * @param mode how K to O are binned.
+     * @return the graph.
+     */
+    public static ColumnGraph graph(CategorizeMode mode) {
+        return graph(mode, null);
+    }
+
+    /**
+     * Returns the graph of {@link #graph(CategorizeMode)}, whose stages allocate their
+     * columns and temporaries from the given arena, or the heap if null.  With an arena,
+     * the graph must only be run one stage at a time.
+     */
+    private static ColumnGraph graph(CategorizeMode mode, Arena out) {
+        Op pv = new Op() {
             @Override
             public double apply(double val) {
                 return val < 0 ? 1 : 0;
             }
-        });
-
-        q0 = d.gt(cd1);                       // min > max[-1]
-        q1 = d.gt(ed1);                       // min > close[-1]
-        q2 = dd1.gt(c);                       // min[-1] > max
-        q3 = ed1.gt(c);                       // close[-1] > max
-        // q = DY if q0, LY if q1, DG if q2, LG if q3
-        q = Vector.cond(q0, q1, q2, q3);
-
-        temp0 = c.gt(cd1);
-        temp1 = d.gt(dd1);
-        temp2 = temp0.not();
-        temp3 = temp1.not();
-        r0 = temp0.mult(temp1);             // max > max[-1], min > min[-1]
-        r1 = temp2.mult(temp3);             // max < max[-1], min < min[-1]
-        r2 = temp2.mult(temp1);             // max < max[-1], min > min[-1]
-        r3 = temp0.mult(temp3);             // max > max[-1], min < min[-1]
-        // r = HH if r0, LL if r1, GS if r2, BU if r3
-        r = Vector.cond(r0, r1, r2, r3);
-
-
-        s = e.sub(ca1);                         // close - max[+1]
-        t = e.sub(da1);                         // close - min[+1]
-        u = e.sub(ca2);                         // close - max[+2]
-        v = e.sub(da2);                         // close - min[+2]
-
-        temp0 = s.add(t).gt(0);
-        temp1 = u.add(v).gt(0);
-        temp2 = temp0.not();
-        temp3 = temp1.not();
-        w = Vector.cond(temp2.mult(temp3), temp0.mult(temp1), temp2.mult(temp1), temp0.mult(temp3));
-        // w = B if !temp0 && !temp1, S if temp0 && temp1, V if !temp0 && temp1, L if temp0 && !temp1
-
-        Vector eint = e.integral();
-        x = Util.movingAverage(eint, 5);
-        y = Util.movingAverage(eint, 10);
-        z = Util.movingAverage(eint, 125);
-        aa = Util.movingAverage(eint, 250);
-
-        data.add(g);
-        data.add(h);
-        data.add(i);
-        data.add(j);
-        data.add(k);
-        data.add(l);
-        data.add(m);
-        data.add(n);
-        data.add(o);
-        data.add(p);
-        data.add(q);
-        data.add(r);
-        data.add(s);
-        data.add(t);
-        data.add(u);
-        data.add(v);
-        data.add(w);
-        data.add(x);
-        data.add(y);
-        data.add(z);
-        data.add(aa);
+        };
+        // the identities of the cached columns, see ColumnGraph#setCache.
+        String categ = mode.toString();
+        ColumnGraph graph = new ColumnGraph("A", "B", "C", "D", "E", "F");
+        graph.add("G", ID + "E - B", in -> in[0].lazy().sub(in[1].lazy()).eval(out),
+                "E", "B");                                                                      // close - open
+        graph.add("H", ID + "C - max(B, E)",
+                in -> in[0].lazy().max(in[1].lazy()).scaleAdd(-1, in[2].lazy()).eval(out),
+                "B", "E", "C");                                                                 // max - max(open, close)
+        graph.add("I", ID + "min(B, E) - D",
+                in -> in[0].lazy().min(in[1].lazy()).sub(in[2].lazy()).eval(out),
+                "B", "E", "D");                                                                 // min(open, close) - min
+        graph.add("J", ID + "C - D", in -> in[0].lazy().sub(in[1].lazy()).eval(out),
+                "C", "D");                                                                      // max - min
+        graph.add("K", ID + "categ(B - E[i-1]) " + categ,
+                in -> categorize(in[0].lazy().sub(in[1].shift(-1).lazy()), mode, out),
+                "B", "E");                                                                      // open - close[-1]
+        graph.add("L", ID + "categ(G) " + categ, in -> mode.categorize(in[0], out), "G");
+        graph.add("M", ID + "categ(E - E[i-1]) " + categ,
+                in -> categorize(in[0].lazy().sub(in[0].shift(-1).lazy()), mode, out),
+                "E");                                                                           // close - close[-1]
+        graph.add("N", ID + "categ(F - F[i-1]) " + categ,
+                in -> categorize(in[0].lazy().sub(in[0].shift(-1).lazy()), mode, out),
+                "F");                                                                           // volume - volume[-1]
+        graph.add("O", ID + "categ(B[i+1] - E) " + categ,
+                in -> categorize(in[0].shift(1).lazy().sub(in[1].lazy()), mode, out),
+                "B", "E");                                                                      // open[+1] - close
+        // p = 'pv' if p[i] < 0 else ''
+        graph.add("P", ID + "M * N < 0", in -> in[0].lazy().mult(in[1].lazy()).apply(pv).evalCategorical(out),
+                "M", "N");
+        graph.add("Q", ID + "cond(D > C[i-1], D > E[i-1], D[i-1] > C, E[i-1] > C)", in -> {
+            Vector c = in[0];
+            Vector d = in[1];
+            Vector e = in[2];
+            // q = DY if min > max[-1], LY if min > close[-1], DG if min[-1] > max,
+            //     LG if close[-1] > max
+            return Vector.cond(out, d.lazy().gt(c.shift(-1).lazy()).evalMask(),
+                    d.lazy().gt(e.shift(-1).lazy()).evalMask(),
+                    d.shift(-1).lazy().gt(c.lazy()).evalMask(),
+                    e.shift(-1).lazy().gt(c.lazy()).evalMask());
+        }, "C", "D", "E");
+        graph.add("R", ID + "cond(HH, LL, GS, BU)", in -> {
+            Mask temp0 = in[0].lazy().gt(in[0].shift(-1).lazy()).evalMask();  // max > max[-1]
+            Mask temp1 = in[1].lazy().gt(in[1].shift(-1).lazy()).evalMask();  // min > min[-1]
+            return Vector.cond(out, temp0.and(temp1), temp0.or(temp1).not(),
+                    temp1.andNot(temp0), temp0.andNot(temp1));
+        }, "C", "D");
+        graph.add("S", ID + "E - C[i+1]", in -> in[0].lazy().sub(in[1].shift(1).lazy()).eval(out),
+                "E", "C");                                                                      // close - max[+1]
+        graph.add("T", ID + "E - D[i+1]", in -> in[0].lazy().sub(in[1].shift(1).lazy()).eval(out),
+                "E", "D");                                                                      // close - min[+1]
+        graph.add("U", ID + "E - C[i+2]", in -> in[0].lazy().sub(in[1].shift(2).lazy()).eval(out),
+                "E", "C");                                                                      // close - max[+2]
+        graph.add("V", ID + "E - D[i+2]", in -> in[0].lazy().sub(in[1].shift(2).lazy()).eval(out),
+                "E", "D");                                                                      // close - min[+2]
+        graph.add("W", ID + "cond(B, S, V, L)", in -> {
+            Mask temp0 = in[0].lazy().add(in[1].lazy()).gt(0).evalMask();
+            Mask temp1 = in[2].lazy().add(in[3].lazy()).gt(0).evalMask();
+            // w = B if !temp0 && !temp1, S if temp0 && temp1, V if !temp0 && temp1, L if temp0 && !temp1
+            return Vector.cond(out, temp0.or(temp1).not(), temp0.and(temp1),
+                    temp1.andNot(temp0), temp0.andNot(temp1));
+        }, "S", "T", "U", "V");
+        graph.add("X", ID + "mov_avg(E, 5)", in -> in[0].rollingMean(5, out), "E");
+        graph.add("Y", ID + "mov_avg(E, 10)", in -> in[0].rollingMean(10, out), "E");
+        graph.add("Z", ID + "mov_avg(E, 125)", in -> in[0].rollingMean(125, out), "E");
+        graph.add("AA", ID + "mov_avg(E, 250)", in -> in[0].rollingMean(250, out), "E");
+        return graph;
+    }
+
+    /**
+     * Bins the given difference in the given mode, see {@link CategorizeMode}.  The
+     * difference is evaluated into the arena, if any, and released at once.
+     */
+    private static Vector categorize(Expr diff, CategorizeMode mode, Arena out) {
+        Vector x = diff.eval(out);
+        Vector ans = mode.categorize(x, out);
+        if (out != null) {
+            out.release(x);
+        }
+        return ans;
     }
 
     /**
@@ -125,12 +213,31 @@ public class PostProcess {
      * @return the output.
      */
     public static List<List<Value>> toOutput(List<Vector> data) {
+        return toOutput(columnNames(), data);
+    }
+
+    /**
+     * Convert the given columns to row-format output.  Each column is formatted as the
+     * column of its name in {@link #columnNames()}, and other columns as numbers.
+     *
+     * @param names the names of the columns.
+     * @param data  the columns.
+     * @return the output.
+     */
+    public static List<List<Value>> toOutput(List<String> names, List<Vector> data) {
+        List<String> all = columnNames();
+        int[] formats = new int[data.size()];
+        for (int j = 0; j < formats.length; j++) {
+            // columns past AA are numbers.
+            int col = (j < names.size()) ? all.indexOf(names.get(j)) : -1;
+            formats[j] = (col >= 0) ? col : all.size();
+        }
         int n = data.get(0).size();
         List<List<Value>> ans = new ArrayList<>(n);
         for (int i = 0; i < n; i++) {
             List<Value> row = new ArrayList<>(data.size());
             for (int j = 0; j < data.size(); j++) {
-                row.add(Value.format(data.get(j).get(i), j));
+                row.add(Value.format(data.get(j).get(i), formats[j]));
             }
             ans.add(row);
         }
@@ -0,0 +1,321 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * An approximate summary of a stream of numbers, which gives their percentiles in a
+ * small, fixed amount of memory.
+ * <p>
+ * This is a KLL sketch: the numbers go into a stack of compactors, each holding up to
+ * a few times k numbers of weight {@code 2^h}, where h is its level.  When a compactor
+ * is full, it is sorted and every other number, starting at a random one of the first
+ * two, moves up a level with twice the weight; the others are dropped.  The capacities
+ * shrink by 2/3 per level down from the top, so the sketch holds O(k) numbers, and
+ * the rank of every percentile is off by at most about {@code 1 / k} of the count with
+ * high probability.  The constructor takes that rank error and picks k from it.
+ * </p>
+ * <p>
+ * Once the count is large enough for the rank error, the numbers are sampled: one
+ * random number of each group of {@code 2^m} goes into level m, and the levels below
+ * stay empty.  So adding a number costs O(1) on long streams, rather than O(log k).
+ * </p>
+ * <p>
+ * Sketches of parts of the data can be merged, so a vector is summarized in chunks in
+ * parallel, see {@link #of(Vector, double)}, and a sketch can be updated one number at
+ * a time as rows stream in.  The random choices come from a fixed seed, so the same
+ * numbers added and merged in the same order give the same sketch.  NaN is not counted.
+ * A QuantileSketch is not thread-safe.
+ * </p>
+ */
+public class QuantileSketch {
+
+    /**
+     * The capacity of each level relative to the one above.
+     */
+    private static final double SHRINK = 2.0 / 3.0;
+
+    /**
+     * The smallest k, below which the bounds of the sketch do not hold.
+     */
+    private static final int MIN_K = 8;
+
+    private final double rankError;
+    private final int k;
+    private double[][] levels = new double[0][];
+    private int[] sizes = new int[0];
+    private int[] capacities = new int[0];
+    // the number of numbers held, and how many fit before a compaction.
+    private int numItems;
+    private int capacity;
+    private long count;
+    private int seed = 0x2545F491;
+    // numbers go in as one random sample of each group of 2^sampleLevel, once the count
+    // reaches nextSampleCount.
+    private int sampleLevel;
+    private long nextSampleCount;
+    private int numSeen;
+    private int sampleIndex;
+    private double sample;
+    // the numbers held in ascending order, with the total weight up to each, or null.
+    private double[] sorted;
+    private long[] ranks;
+
+    /**
+     * Create a new, empty QuantileSketch.
+     *
+     * @param rankError the largest acceptable error in the rank of a percentile, as a
+     *                  fraction of the count, from 0 to 1, exclusive.  0.01 keeps about
+     *                  a thousand numbers.
+     * @throws IllegalArgumentException if the rank error is out of range.
+     */
+    public QuantileSketch(double rankError) {
+        if (!(rankError > 0 && rankError < 1)) {
+            throw new IllegalArgumentException("Rank error out of range: " + rankError);
+        }
+        this.rankError = rankError;
+        // the normalized rank error of KLL sketches measured at 99% confidence is
+        // 2.296 / k^0.9723.
+        this.k = Math.max(MIN_K, (int) Math.ceil(Math.pow(2.296 / rankError, 1 / 0.9723)));
+        this.nextSampleCount = sampleCount(1);
+        grow();
+    }
+
+    /**
+     * Returns a sketch of the given vector.  Large vectors are summarized in chunks in
+     * parallel, which are then merged, so the sketch depends on the number of chunks.
+     *
+     * @param v         the vector.
+     * @param rankError the rank error, see {@link #QuantileSketch(double)}.
+     * @return the sketch.
+     */
+    public static QuantileSketch of(Vector v, double rankError) {
+        int n = v.size();
+        int[] bounds = Parallel.isParallel(n) ? Parallel.split(0, n, 1) : new int[]{0, n};
+        QuantileSketch[] parts = new QuantileSketch[bounds.length - 1];
+        Parallel.forChunks(bounds, (c, from, to) -> {
+            QuantileSketch part = new QuantileSketch(rankError);
+            double[] block = new double[Math.min(1024, to - from)];
+            for (int s = from; s < to; s += block.length) {
+                int e = Math.min(s + block.length, to);
+                v.copyTo(s, e, block, 0);
+                for (int i = 0; i < e - s; i++) {
+                    part.add(block[i]);
+                }
+            }
+            parts[c] = part;
+        });
+        for (int c = 1; c < parts.length; c++) {
+            parts[0].merge(parts[c]);
+        }
+        return parts[0];
+    }
+
+    /**
+     * Returns the rank error this sketch was created with.
+     *
+     * @return the rank error.
+     */
+    public double getRankError() {
+        return rankError;
+    }
+
+    /**
+     * Returns the number of numbers added, counting those of merged sketches.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Adds a number.  NaN is ignored.
+     *
+     * @param val the number.
+     */
+    public void add(double val) {
+        if (Double.isNaN(val)) {
+            return;
+        }
+        count++;
+        if (sampleLevel > 0) {
+            if (numSeen == sampleIndex) {
+                sample = val;
+            }
+            if (++numSeen < (1 << sampleLevel)) {
+                return;
+            }
+            val = sample;
+            numSeen = 0;
+            sampleIndex = random() & ((1 << sampleLevel) - 1);
+        }
+        append(sampleLevel, val);
+        sorted = null;
+        if (numItems >= capacity) {
+            compress();
+        }
+        while (count >= nextSampleCount) {
+            sampleLevel++;
+            nextSampleCount = sampleCount(sampleLevel + 1);
+            sampleIndex = random() & ((1 << sampleLevel) - 1);
+            while (levels.length <= sampleLevel) {
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Returns the count from which the numbers can be sampled at the given level.
+     * <p>
+     * Sampling one number of each group of w counts each number that is below some
+     * value w times, or not at all, with an error of at most w per group.  Over n / w
+     * groups, the standard deviation of the error is at most sqrt(n w) / 2, which is
+     * well below the rank error while w is at most {@code rankError^2 n / 8}.
+     * </p>
+     */
+    private long sampleCount(int level) {
+        return (long) Math.ceil(8.0 * (1L << level) / (rankError * rankError));
+    }
+
+    private int random() {
+        // xorshift
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    /**
+     * Adds all numbers of the given sketch to this one, but those of its last group of
+     * numbers that is not sampled yet.  The other sketch is not changed.
+     *
+     * @param other the sketch to merge, with the same rank error.
+     * @throws IllegalArgumentException if the rank errors differ.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Rank errors differ: " + rankError + ", " + other.rankError);
+        }
+        while (levels.length < other.levels.length) {
+            grow();
+        }
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        count += other.count;
+        sorted = null;
+        while (numItems >= capacity) {
+            compress();
+        }
+    }
+
+    /**
+     * Returns the pth percentile: the smallest number held whose rank is at least
+     * {@code p / 100} of the count.
+     *
+     * @param p the percentile, from 0 to 100.
+     * @return the percentile, or NaN if the sketch is empty.
+     */
+    public double percentile(double p) {
+        if (sorted == null) {
+            sort();
+        }
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        long target = (long) Math.ceil(p / 100 * ranks[ranks.length - 1]);
+        int lo = 0;
+        int hi = sorted.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ranks[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return sorted[lo];
+    }
+
+    private void append(int h, double val) {
+        if (sizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], 2 * levels[h].length);
+        }
+        levels[h][sizes[h]++] = val;
+        numItems++;
+    }
+
+    /**
+     * Compacts the lowest level that is full.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h]) {
+                if (h + 1 == levels.length) {
+                    grow();
+                }
+                double[] level = levels[h];
+                int size = sizes[h];
+                // an odd number stays behind.
+                int from = size & 1;
+                Arrays.sort(level, 0, size);
+                for (int i = from + (random() & 1); i < size; i += 2) {
+                    append(h + 1, level[i]);
+                }
+                sizes[h] = from;
+                numItems -= size - from;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a level on top, which lowers the capacities of the others.
+     */
+    private void grow() {
+        int h = levels.length;
+        levels = Arrays.copyOf(levels, h + 1);
+        sizes = Arrays.copyOf(sizes, h + 1);
+        levels[h] = new double[k + 1];
+        capacities = new int[h + 1];
+        capacity = 0;
+        for (int i = 0; i <= h; i++) {
+            capacities[i] = (int) Math.ceil(Math.pow(SHRINK, h - i) * k) + 1;
+            capacity += capacities[i];
+        }
+    }
+
+    /**
+     * Sorts the numbers held, and sums their weights.
+     */
+    private void sort() {
+        double[] values = new double[0];
+        long[] weights = new long[0];
+        for (int h = 0; h < levels.length; h++) {
+            double[] level = Arrays.copyOf(levels[h], sizes[h]);
+            Arrays.sort(level);
+            double[] mergedValues = new double[values.length + level.length];
+            long[] mergedWeights = new long[mergedValues.length];
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < mergedValues.length; i++) {
+                if (b == level.length || (a < values.length && values[a] <= level[b])) {
+                    mergedValues[i] = values[a];
+                    mergedWeights[i] = weights[a++];
+                } else {
+                    mergedValues[i] = level[b++];
+                    mergedWeights[i] = 1L << h;
+                }
+            }
+            values = mergedValues;
+            weights = mergedWeights;
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        sorted = values;
+        ranks = weights;
+    }
+}
@@ -0,0 +1,245 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * A multiset of numbers that can return its kth smallest element, and its percentiles,
+ * in O(log n).
+ * <p>
+ * The elements are kept in a treap: a binary search tree, ordered by value, that is
+ * also a heap on random node priorities, so its expected depth is O(log n).  Equal
+ * values share one node with a count, and each node knows the number of elements in
+ * its subtree.  The nodes live in parallel arrays, so adding an element allocates
+ * nothing once the arrays have grown.  NaN is not allowed.
+ * </p>
+ */
+public class RankTree {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // node 0 is the empty tree, with size 0.
+    private double[] keys;
+    private int[] counts;
+    private int[] sizes;
+    private int[] left;
+    private int[] right;
+    private int[] priorities;
+    private int root;
+    private int numNodes;
+    private int free;
+    private int seed = 0x2545F491;
+
+    /**
+     * Create a new, empty RankTree.
+     */
+    public RankTree() {
+        keys = new double[DEFAULT_CAPACITY];
+        counts = new int[DEFAULT_CAPACITY];
+        sizes = new int[DEFAULT_CAPACITY];
+        left = new int[DEFAULT_CAPACITY];
+        right = new int[DEFAULT_CAPACITY];
+        priorities = new int[DEFAULT_CAPACITY];
+        numNodes = 1;
+    }
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        return sizes[root];
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param val the element, not NaN.
+     */
+    public void add(double val) {
+        root = insert(root, val);
+    }
+
+    /**
+     * Removes one element equal to the given value.
+     *
+     * @param val the element.
+     * @return true if there was such an element.
+     */
+    public boolean remove(double val) {
+        int before = size();
+        root = delete(root, val);
+        return size() < before;
+    }
+
+    /**
+     * Removes all elements.
+     */
+    public void clear() {
+        root = 0;
+        numNodes = 1;
+        free = 0;
+    }
+
+    /**
+     * Returns the kth smallest element, counting from 0.
+     *
+     * @param k the rank.
+     * @return the element.
+     * @throws IndexOutOfBoundsException if k is not below {@link #size()}.
+     */
+    public double select(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("Rank " + k + " of " + size());
+        }
+        int t = root;
+        while (true) {
+            int below = sizes[left[t]];
+            if (k < below) {
+                t = left[t];
+            } else if (k < below + counts[t]) {
+                return keys[t];
+            } else {
+                k -= below + counts[t];
+                t = right[t];
+            }
+        }
+    }
+
+    /**
+     * Returns the pth percentile of the elements, estimated like the default
+     * {@link org.apache.commons.math3.stat.descriptive.rank.Percentile.EstimationType#LEGACY}.
+     *
+     * @param p the percentile, from 0 to 100.
+     * @return the percentile, or NaN if there is no element.
+     */
+    public double percentile(double p) {
+        int length = size();
+        if (length == 0) {
+            return Double.NaN;
+        } else if (length == 1) {
+            return select(0);
+        }
+        double pos = p / 100 * (length + 1);
+        double fpos = Math.floor(pos);
+        int intPos = (int) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return select(0);
+        } else if (pos >= length) {
+            return select(length - 1);
+        }
+        double lower = select(intPos - 1);
+        double upper = select(intPos);
+        return lower + dif * (upper - lower);
+    }
+
+    private int insert(int t, double val) {
+        if (t == 0) {
+            return newNode(val);
+        }
+        int c = Double.compare(val, keys[t]);
+        if (c == 0) {
+            counts[t]++;
+        } else if (c < 0) {
+            // insert may grow the arrays, so it must run before left is read.
+            int child = insert(left[t], val);
+            left[t] = child;
+            if (priorities[left[t]] > priorities[t]) {
+                t = rotateRight(t);
+            }
+        } else {
+            int child = insert(right[t], val);
+            right[t] = child;
+            if (priorities[right[t]] > priorities[t]) {
+                t = rotateLeft(t);
+            }
+        }
+        update(t);
+        return t;
+    }
+
+    private int delete(int t, double val) {
+        if (t == 0) {
+            return 0;
+        }
+        int c = Double.compare(val, keys[t]);
+        if (c < 0) {
+            left[t] = delete(left[t], val);
+        } else if (c > 0) {
+            right[t] = delete(right[t], val);
+        } else if (counts[t] > 1) {
+            counts[t]--;
+        } else if (left[t] == 0 || right[t] == 0) {
+            int child = (left[t] == 0) ? right[t] : left[t];
+            // the free nodes are linked through left.
+            left[t] = free;
+            free = t;
+            return child;
+        } else if (priorities[left[t]] > priorities[right[t]]) {
+            t = rotateRight(t);
+            right[t] = delete(right[t], val);
+        } else {
+            t = rotateLeft(t);
+            left[t] = delete(left[t], val);
+        }
+        update(t);
+        return t;
+    }
+
+    private int rotateRight(int t) {
+        int l = left[t];
+        left[t] = right[l];
+        right[l] = t;
+        update(t);
+        update(l);
+        return l;
+    }
+
+    private int rotateLeft(int t) {
+        int r = right[t];
+        right[t] = left[r];
+        left[r] = t;
+        update(t);
+        update(r);
+        return r;
+    }
+
+    private void update(int t) {
+        sizes[t] = sizes[left[t]] + counts[t] + sizes[right[t]];
+    }
+
+    private int newNode(double val) {
+        int t;
+        if (free != 0) {
+            t = free;
+            free = left[t];
+        } else {
+            if (numNodes == keys.length) {
+                grow();
+            }
+            t = numNodes++;
+        }
+        // xorshift
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        keys[t] = val;
+        counts[t] = 1;
+        sizes[t] = 1;
+        left[t] = 0;
+        right[t] = 0;
+        priorities[t] = seed;
+        return t;
+    }
+
+    private void grow() {
+        int capacity = keys.length + (keys.length >> 1);
+        keys = Arrays.copyOf(keys, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        priorities = Arrays.copyOf(priorities, capacity);
+    }
+}
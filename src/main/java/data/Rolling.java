@@ -0,0 +1,290 @@
+package data;
+
+/**
+ * A statistic of the last values of a sequence, updated in O(1) per value.
+ * <p>
+ * A Rolling is fed the sequence block by block, see {@link #run}, and gives for each
+ * value the statistic of the window of the last {@code window} values, ending with it.
+ * It keeps the values of the window in a ring, so it allocates nothing after it is
+ * created.  The statistic is NaN until the window is full, and while a NaN is in it.
+ * </p>
+ * <ul>
+ * <li>The sum and mean add each value and subtract the one leaving the window with
+ * Neumaier's compensated summation, so they do not drift over long sequences, as a
+ * difference of running sums does.</li>
+ * <li>The min and max keep a deque of the values that can still be the extreme,
+ * in order, so each value is pushed and popped at most once.</li>
+ * <li>The variance and standard deviation update the mean and the sum of squared
+ * deviations with Welford's method, as the value leaving the window is removed and the
+ * new one added, and recompute them from the ring once per window, which costs O(1)
+ * per value as well, so the rounding errors do not build up.  They are the sample
+ * statistics, divided by {@code window - 1}, so they are NaN for a window of 1.</li>
+ * </ul>
+ */
+abstract class Rolling {
+
+    final int window;
+    // the values in the window, oldest at head once full.
+    final double[] ring;
+    int head;
+    int count;
+    // the number of NaNs in the window.
+    int numNaN;
+
+    Rolling(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive: " + window);
+        }
+        this.window = window;
+        this.ring = new double[window];
+    }
+
+    /**
+     * Returns a rolling sum.
+     */
+    static Rolling sum(int window) {
+        return new Sum(window, false);
+    }
+
+    /**
+     * Returns a rolling mean.
+     */
+    static Rolling mean(int window) {
+        return new Sum(window, true);
+    }
+
+    /**
+     * Returns a rolling min.
+     */
+    static Rolling min(int window) {
+        return new Extreme(window, false);
+    }
+
+    /**
+     * Returns a rolling max.
+     */
+    static Rolling max(int window) {
+        return new Extreme(window, true);
+    }
+
+    /**
+     * Returns a rolling sample variance.
+     */
+    static Rolling variance(int window) {
+        return new Variance(window, false);
+    }
+
+    /**
+     * Returns a rolling sample standard deviation.
+     */
+    static Rolling std(int window) {
+        return new Variance(window, true);
+    }
+
+    /**
+     * Feeds {@code len} values of {@code in} from {@code pos} on, and writes the
+     * statistic of the window ending at each to {@code out} from {@code outPos} on.
+     */
+    abstract void run(double[] in, int pos, double[] out, int outPos, int len);
+
+    /**
+     * Puts a value into the ring, and returns the one it replaces, or NaN while the
+     * window is not full.  Counts the NaNs in the window.
+     */
+    final double push(double val) {
+        double old = Double.NaN;
+        if (count == window) {
+            old = ring[head];
+            if (old != old) {
+                numNaN--;
+            }
+        } else {
+            count++;
+        }
+        if (val != val) {
+            numNaN++;
+        }
+        ring[head] = val;
+        head = (head + 1 == window) ? 0 : head + 1;
+        return old;
+    }
+
+    /**
+     * Returns true if the statistic of the window is defined.
+     */
+    final boolean defined() {
+        return count == window && numNaN == 0;
+    }
+
+    private static class Sum extends Rolling {
+        private final boolean mean;
+        private double sum;
+        private double compensation;
+
+        Sum(int window, boolean mean) {
+            super(window);
+            this.mean = mean;
+        }
+
+        @Override
+        void run(double[] in, int pos, double[] out, int outPos, int len) {
+            // the state is kept in locals in the loop.
+            double[] ring = this.ring;
+            double s = sum;
+            double c = compensation;
+            int h = head;
+            int nan = numNaN;
+            double scale = mean ? window : 1;
+            for (int k = 0; k < len; k++) {
+                double val = in[pos + k];
+                if (count == window) {
+                    double old = ring[h];
+                    if (old == old) {
+                        double t = s - old;
+                        c += (Math.abs(s) >= Math.abs(old)) ? (s - t) - old : (-old - t) + s;
+                        s = t;
+                    } else {
+                        nan--;
+                    }
+                } else {
+                    count++;
+                }
+                ring[h] = val;
+                h = (h + 1 == window) ? 0 : h + 1;
+                if (val == val) {
+                    double t = s + val;
+                    c += (Math.abs(s) >= Math.abs(val)) ? (s - t) + val : (val - t) + s;
+                    s = t;
+                } else {
+                    nan++;
+                }
+                out[outPos + k] = (count == window && nan == 0) ? (s + c) / scale : Double.NaN;
+            }
+            sum = s;
+            compensation = c;
+            head = h;
+            numNaN = nan;
+        }
+    }
+
+    private static class Extreme extends Rolling {
+        private final boolean max;
+        // the deque, as a ring of the indices and values of the candidates.
+        private final long[] indices;
+        private final double[] values;
+        private int front;
+        private int size;
+        private long index;
+
+        Extreme(int window, boolean max) {
+            super(window);
+            this.max = max;
+            this.indices = new long[window];
+            this.values = new double[window];
+        }
+
+        @Override
+        void run(double[] in, int pos, double[] out, int outPos, int len) {
+            long[] indices = this.indices;
+            double[] values = this.values;
+            int f = front;
+            // the end of the deque, one past its back.
+            int e = (f + size < window) ? f + size : f + size - window;
+            int n = size;
+            for (int k = 0; k < len; k++) {
+                double val = in[pos + k];
+                push(val);
+                long i = index++;
+                if (n > 0 && indices[f] <= i - window) {
+                    f = (f + 1 == window) ? 0 : f + 1;
+                    n--;
+                }
+                if (val == val) {
+                    // drop the candidates the new value beats for good.
+                    while (n > 0) {
+                        int back = (e == 0) ? window - 1 : e - 1;
+                        if (max ? values[back] > val : values[back] < val) {
+                            break;
+                        }
+                        e = back;
+                        n--;
+                    }
+                    indices[e] = i;
+                    values[e] = val;
+                    e = (e + 1 == window) ? 0 : e + 1;
+                    n++;
+                }
+                out[outPos + k] = defined() ? values[f] : Double.NaN;
+            }
+            front = f;
+            size = n;
+        }
+    }
+
+    private static class Variance extends Rolling {
+        private final boolean std;
+        private int n;
+        private double mean;
+        private double m2;
+
+        Variance(int window, boolean std) {
+            super(window);
+            this.std = std;
+        }
+
+        @Override
+        void run(double[] in, int pos, double[] out, int outPos, int len) {
+            for (int k = 0; k < len; k++) {
+                double val = in[pos + k];
+                double old = push(val);
+                if (head == 0 && defined()) {
+                    // once per window, recompute from the ring, so errors do not build up.
+                    resync();
+                } else {
+                    if (old == old) {
+                        remove(old);
+                    }
+                    if (val == val) {
+                        add(val);
+                    }
+                }
+                double variance = Math.max(0, m2 / (window - 1));
+                out[outPos + k] = !defined() ? Double.NaN : std ? Math.sqrt(variance) : variance;
+            }
+        }
+
+        private void add(double val) {
+            n++;
+            double d = val - mean;
+            mean += d / n;
+            m2 += d * (val - mean);
+        }
+
+        private void resync() {
+            double sum = 0;
+            for (double val : ring) {
+                sum += val;
+            }
+            n = window;
+            mean = sum / window;
+            m2 = 0;
+            for (double val : ring) {
+                double d = val - mean;
+                m2 += d * d;
+            }
+        }
+
+        private void remove(double val) {
+            if (n == 1) {
+                n = 0;
+                mean = 0;
+                m2 = 0;
+                return;
+            }
+            n--;
+            double d = val - mean;
+            mean -= d / n;
+            m2 -= d * (val - mean);
+        }
+    }
+}
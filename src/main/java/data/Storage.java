@@ -0,0 +1,103 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decides where the data of new {@link Vector}s is stored.
+ * <p>
+ * Vectors with fewer elements than the off-heap threshold are stored in a
+ * {@code double[]}.  Larger ones are stored outside of the Java heap, in a direct
+ * {@link ByteBuffer}, or, if a spill directory is set, in a memory-mapped temporary
+ * file in that directory, so long histories do not fill the heap.  The memory is
+ * released when the vector is garbage collected.
+ * </p>
+ * <p>
+ * By default all vectors are stored on the heap.  The threshold and the spill
+ * directory can be set with the system properties {@code qexcel.offheap.threshold}
+ * and {@code qexcel.offheap.dir}, or with the setters below.
+ * </p>
+ */
+public class Storage {
+
+    private static volatile int threshold = Integer.getInteger("qexcel.offheap.threshold", Integer.MAX_VALUE);
+    private static volatile File dir = System.getProperty("qexcel.offheap.dir") == null
+            ? null : new File(System.getProperty("qexcel.offheap.dir"));
+
+    /**
+     * Sets the number of elements from which vectors are stored off the heap.
+     *
+     * @param numElements the threshold.  {@link Integer#MAX_VALUE} keeps all vectors on the heap.
+     */
+    public static void setThreshold(int numElements) {
+        threshold = numElements;
+    }
+
+    /**
+     * Returns the number of elements from which vectors are stored off the heap.
+     *
+     * @return the threshold.
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the directory of the files backing off-heap vectors.
+     *
+     * @param spillDir the directory, or null to use direct buffers.
+     */
+    public static void setDirectory(File spillDir) {
+        dir = spillDir;
+    }
+
+    /**
+     * Returns true if a vector of the given size is stored off the heap.
+     *
+     * @param n the number of elements.
+     * @return true for off-heap storage.
+     */
+    public static boolean isOffHeap(int n) {
+        return n > 0 && n >= threshold;
+    }
+
+    /**
+     * Allocates off-heap storage for the given number of elements.
+     *
+     * @param n the number of elements.
+     * @return the storage, initialized to 0.
+     * @throws IllegalArgumentException if the storage would exceed 2GB.
+     * @throws UncheckedIOException     if the spill file cannot be created.
+     */
+    static DoubleBuffer allocate(int n) {
+        if (n > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("Too many elements for off-heap storage: " + n);
+        }
+        File spillDir = dir;
+        if (spillDir == null) {
+            return ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        File f = null;
+        try {
+            f = File.createTempFile("qexcel", ".vec", spillDir);
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                 FileChannel ch = raf.getChannel()) {
+                // the mapping stays valid after the channel is closed.
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, 8L * n)
+                        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create spill file in " + spillDir, e);
+        } finally {
+            if (f != null && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+}
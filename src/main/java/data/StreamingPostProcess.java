@@ -0,0 +1,313 @@
+package data;
+
+import util.CategorizeMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Calculates the derived columns of {@link PostProcess} one bar at a time, for live
+ * updates.
+ * <p>
+ * Each {@link #append} computes the derived values of the new row from the last rows
+ * and a few running states, and fills in the columns of the two rows before it that
+ * look ahead: O, S and T of the previous row and U and V of the one before, and W of
+ * both.  Until then, those values are what {@link PostProcess} gives for the last rows
+ * of the data.  The moving averages are fed the close one row at a time, so every
+ * column but K to O is computed in O(1), and equals the one of {@link PostProcess}
+ * cell for cell.
+ * </p>
+ * <p>
+ * The categorizations K to O cannot see the future rows: each value is binned with the
+ * percentiles of the values so far, kept in a {@link RankTree}, in O(log n).  Rows are
+ * not binned again as later rows move the percentiles, so K to O, and P, differ from
+ * {@link PostProcess}, which bins all rows with the percentiles of the whole column.
+ * NaN differences are not counted in the percentiles.
+ * </p>
+ * <p>
+ * If a categorize window is given, each value is binned with the percentiles of the
+ * values of the window ending at it instead, and the one leaving the window is removed
+ * from the tree.  That is what {@link PostProcess#graph(CategorizeMode)} does with
+ * {@link CategorizeMode#window(int)} too, so all columns are equal cell for cell.
+ * </p>
+ */
+public class StreamingPostProcess {
+
+    /**
+     * The number of columns, A to AA.
+     */
+    public static final int NUM_COLUMNS = 27;
+
+    private static final int[] WINDOWS = {5, 10, 125, 250};
+
+    // the columns.
+    private static final int B = 1;
+    private static final int C = 2;
+    private static final int D = 3;
+    private static final int E = 4;
+    private static final int F = 5;
+    private static final int G = 6;
+    private static final int H = 7;
+    private static final int I = 8;
+    private static final int J = 9;
+    private static final int K = 10;
+    private static final int L = 11;
+    private static final int M = 12;
+    private static final int N = 13;
+    private static final int O = 14;
+    private static final int P = 15;
+    private static final int Q = 16;
+    private static final int R = 17;
+    private static final int S = 18;
+    private static final int T = 19;
+    private static final int U = 20;
+    private static final int V = 21;
+    private static final int W = 22;
+    private static final int X = 23;
+
+    private final ColumnBuilder[] cols = new ColumnBuilder[NUM_COLUMNS];
+    // the values binned into K to O so far, in the order of the columns.
+    private final RankTree[] dists = new RankTree[5];
+    // the categorize window, or 0, and the last values binned into K to O in rings.
+    private final int window;
+    private final double[][] recent = new double[5][];
+    private final int[] numBinned = new int[5];
+    // the moving averages X to AA, fed the close.
+    private final Rolling[] averages = new Rolling[WINDOWS.length];
+    private int n;
+
+    /**
+     * Create a new StreamingPostProcess instance with no rows.
+     */
+    public StreamingPostProcess() {
+        this(0);
+    }
+
+    /**
+     * Create a new StreamingPostProcess instance with no rows, that bins K to O with the
+     * percentiles of a trailing window.
+     *
+     * @param window the number of rows of a window, or 0 for all rows so far.
+     * @throws IllegalArgumentException if the window is negative.
+     */
+    public StreamingPostProcess(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + window);
+        }
+        this.window = window;
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+            cols[col] = new ColumnBuilder();
+        }
+        for (int k = 0; k < dists.length; k++) {
+            dists[k] = new RankTree();
+            recent[k] = new double[window];
+        }
+        for (int a = 0; a < WINDOWS.length; a++) {
+            averages[a] = Rolling.mean(WINDOWS[a]);
+        }
+    }
+
+    /**
+     * Create a new StreamingPostProcess instance with the rows of the given data.
+     *
+     * @param data the excel data, columns A to F.
+     */
+    public StreamingPostProcess(List<Vector> data) {
+        this(data, 0);
+    }
+
+    /**
+     * Create a new StreamingPostProcess instance with the rows of the given data, that
+     * bins K to O with the percentiles of a trailing window.
+     *
+     * @param data   the excel data, columns A to F.
+     * @param window the number of rows of a window, or 0 for all rows so far.
+     * @throws IllegalArgumentException if the window is negative.
+     */
+    public StreamingPostProcess(List<Vector> data, int window) {
+        this(window);
+        int size = data.get(0).size();
+        for (int i = 0; i < size; i++) {
+            append(data.get(0).get(i), data.get(1).get(i), data.get(2).get(i),
+                    data.get(3).get(i), data.get(4).get(i), data.get(5).get(i));
+        }
+    }
+
+    /**
+     * Appends a bar and computes its derived values.
+     *
+     * @param date   the date.
+     * @param open   the open.
+     * @param max    the max.
+     * @param min    the min.
+     * @param close  the close.
+     * @param volume the volume.
+     * @return the first row whose values were set or changed.  All rows from it to the
+     * new one, which is {@link #size()} - 1, changed.
+     */
+    public int append(double date, double open, double max, double min, double close, double volume) {
+        int i = n++;
+        double max1 = get(C, i - 1);
+        double min1 = get(D, i - 1);
+        double close1 = get(E, i - 1);
+        double volume1 = get(F, i - 1);
+        double[] row = new double[NUM_COLUMNS];
+        row[0] = date;
+        row[B] = open;
+        row[C] = max;
+        row[D] = min;
+        row[E] = close;
+        row[F] = volume;
+
+        row[G] = close - open;                                      // close - open
+        row[H] = Math.max(open, close) * -1 + max;                  // max - max(open, close)
+        row[I] = Math.min(open, close) - min;                       // min(open, close) - min
+        row[J] = max - min;                                         // max - min
+        row[K] = categorize(0, open - close1);                      // open - close[-1]
+        row[L] = categorize(1, row[G]);
+        row[M] = categorize(2, close - close1);                     // close - close[-1]
+        row[N] = categorize(3, volume - volume1);                   // volume - volume[-1]
+        // open[+1] - close is not known yet: NaN, which falls into the top category.
+        row[O] = (i + 1 < window) ? Double.NaN : 2;
+        // p = 'pv' if p[i] < 0 else ''
+        row[P] = (row[M] * row[N] < 0) ? 1 : 0;
+
+        // q = DY if min > max[-1], LY if min > close[-1], DG if min[-1] > max,
+        //     LG if close[-1] > max
+        if (min > max1) {
+            row[Q] = 1;
+        } else if (min > close1) {
+            row[Q] = 2;
+        } else if (min1 > max) {
+            row[Q] = 3;
+        } else if (close1 > max) {
+            row[Q] = 4;
+        }
+        // r = HH if max > max[-1], min > min[-1]
+        //     LL if max < max[-1], min < min[-1]
+        //     GS if max < max[-1], min > min[-1]
+        //     BU if max > max[-1], min < min[-1]
+        boolean higher = max > max1;
+        boolean lower = min > min1;
+        row[R] = higher ? (lower ? 1 : 4) : (lower ? 3 : 2);
+
+        // s, t, u and v look ahead, so they are NaN and w is B until the next rows.
+        row[S] = Double.NaN;
+        row[T] = Double.NaN;
+        row[U] = Double.NaN;
+        row[V] = Double.NaN;
+        row[W] = 1;
+
+        for (int a = 0; a < WINDOWS.length; a++) {
+            averages[a].run(row, E, row, X + a, 1);
+        }
+
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+            cols[col].add(row[col]);
+        }
+
+        if (i >= 1) {
+            cols[O].set(i - 1, categorize(4, open - close1));        // open[+1] - close
+            cols[S].set(i - 1, close1 - max);                        // close - max[+1]
+            cols[T].set(i - 1, close1 - min);                        // close - min[+1]
+            updateW(i - 1);
+        }
+        if (i >= 2) {
+            double close2 = get(E, i - 2);
+            cols[U].set(i - 2, close2 - max);                        // close - max[+2]
+            cols[V].set(i - 2, close2 - min);                        // close - min[+2]
+            updateW(i - 2);
+        }
+        return Math.max(0, i - 2);
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param col the column, 0 for A to 26 for AA.
+     * @param row the row.
+     * @return the value, or NaN if the row is out of range.
+     */
+    public double get(int col, int row) {
+        return (row >= 0 && row < n) ? cols[col].get(row) : Double.NaN;
+    }
+
+    /**
+     * Returns the values of a row.
+     *
+     * @param row the row, below {@link #size()}.
+     * @return the values of columns A to AA.
+     */
+    public double[] getRow(int row) {
+        double[] ans = new double[NUM_COLUMNS];
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+            ans[col] = cols[col].get(row);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns a copy of all columns, as {@link PostProcess#postProcess(List)} leaves them.
+     *
+     * @return the columns A to AA.
+     */
+    public List<Vector> getData() {
+        List<Vector> ans = new ArrayList<>(NUM_COLUMNS);
+        for (int col = 0; col < NUM_COLUMNS; col++) {
+            ans.add(new Vector(cols[col].toArray()));
+        }
+        return ans;
+    }
+
+    /**
+     * Adds the given value to the values of column K + k so far, or of its window, and
+     * returns its category among them, as {@link util.Util#categorize(Vector)} would.
+     */
+    private double categorize(int k, double val) {
+        RankTree dist = dists[k];
+        if (!Double.isNaN(val)) {
+            dist.add(val);
+        }
+        if (window > 0) {
+            int slot = numBinned[k]++ % window;
+            double old = recent[k][slot];
+            recent[k][slot] = val;
+            if (numBinned[k] > window && !Double.isNaN(old)) {
+                dist.remove(old);
+            }
+            if (numBinned[k] < window) {
+                return Double.NaN;
+            }
+        }
+        if (val < dist.percentile(20)) {
+            return -2;
+        } else if (val < dist.percentile(40)) {
+            return -1;
+        } else if (val < dist.percentile(60)) {
+            return 0;
+        } else if (val < dist.percentile(80)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * Sets W of the given row from its S to V.
+     */
+    private void updateW(int i) {
+        boolean near = cols[S].get(i) * 1.0 + cols[T].get(i) > 0;
+        boolean far = cols[U].get(i) * 1.0 + cols[V].get(i) > 0;
+        // w = B if !near && !far, S if near && far, V if !near && far, L if near && !far
+        cols[W].set(i, near ? (far ? 2 : 4) : (far ? 3 : 1));
+    }
+}
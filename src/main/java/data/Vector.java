@@ -1,12 +1,42 @@
 package data;
 
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A 1-D double Vector with concept of view.
+ * <p>
+ * A view shifted by {@code offset} has element {@code i} at {@code data[i + offset]},
+ * and elements that fall outside the underlying array are missing.  The element-wise
+ * operations compute the range where all operands are present up front, run a plain
+ * loop over it, and fill the edges explicitly.
+ * </p>
+ * <p>
+ * The element-wise operations that return a new vector are evaluated by {@link Expr}.
+ * Use {@link #lazy()} to chain several of them without intermediate arrays.
+ * </p>
+ * <p>
+ * The data is either a {@code double[]} on the heap, or a {@link DoubleBuffer} off
+ * the heap for vectors at or above the {@link Storage} threshold.  Categorical
+ * vectors, such as the result of {@link #cond(Mask...)}, hold small whole numbers in
+ * one byte per element.  All operations work the same on all three, but writing a
+ * value other than NaN or a whole number from -127 to 127 to a categorical vector
+ * throws {@link IllegalArgumentException}.
+ * </p>
+ * <p>
+ * Operations on vectors at or above the {@link Parallel} threshold run in parallel
+ * chunks, except in-place operations on two views of the same data.
+ * </p>
  */
 public class Vector {
+    private static final int BLOCK = 1024;
+    private static final byte NAN_CODE = Byte.MIN_VALUE;
+
     private double[] data;
+    private DoubleBuffer buf;
+    private byte[] codes;
+    private int n;
     private int offset;
 
     /**
@@ -26,9 +56,54 @@ public class Vector {
      */
     public Vector(double[] data, int offset) {
         this.data = data;
+        this.n = data.length;
+        this.offset = offset;
+    }
+
+    /**
+     * Create a new Vector instance over the remaining elements of the given buffer.
+     * The buffer is used as is, without copying.
+     *
+     * @param buf the underlying data.
+     */
+    public Vector(DoubleBuffer buf) {
+        this(buf.slice(), 0);
+    }
+
+    private Vector(DoubleBuffer buf, int offset) {
+        this.buf = buf;
+        this.n = buf.capacity();
+        this.offset = offset;
+    }
+
+    private Vector(double[] data, int n, int offset) {
+        this.data = data;
+        this.n = n;
+        this.offset = offset;
+    }
+
+    private Vector(byte[] codes, int n, int offset) {
+        this.codes = codes;
+        this.n = n;
         this.offset = offset;
     }
 
+    /**
+     * Initialize the Vector from the given builder.  The builder's array is trimmed
+     * and handed off without another copy, and the builder is empty afterwards.  If
+     * the vector is large enough to be stored off the heap, it is copied there.
+     *
+     * @param builder the column builder.
+     */
+    public Vector(ColumnBuilder builder) {
+        this(builder.build(), 0);
+        if (Storage.isOffHeap(n)) {
+            buf = Storage.allocate(n);
+            buf.put(data);
+            data = null;
+        }
+    }
+
     /**
      * Intialize the Vector
      *
@@ -37,12 +112,86 @@ public class Vector {
     public Vector(List<Double> data) {
         int size = data.size();
         offset = 0;
+        n = size;
         this.data = new double[size];
         for (int i = 0; i < size; i++) {
             this.data[i + offset] = data.get(i);
         }
     }
 
+    /**
+     * Returns a new vector with the next {@code size} elements of the given buffer.  The
+     * vector is stored off the heap if it is large enough.
+     *
+     * @param src  the buffer to copy from.  Its position is advanced.
+     * @param size the number of elements to copy.
+     * @return the new vector.
+     */
+    public static Vector copyOf(DoubleBuffer src, int size) {
+        Vector ans = allocate(size);
+        if (ans.data != null) {
+            src.get(ans.data);
+        } else {
+            DoubleBuffer part = src.slice();
+            part.limit(size);
+            ans.buf.put(part);
+            src.position(src.position() + size);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns a new vector of the given size, initialized to 0, stored on or off the heap
+     * as set by {@link Storage}.
+     */
+    static Vector allocate(int size) {
+        if (Storage.isOffHeap(size)) {
+            return new Vector(Storage.allocate(size), 0);
+        }
+        return new Vector(new double[size], 0);
+    }
+
+    /**
+     * Returns a new vector of the given size over the start of the given array, which
+     * may be longer.
+     */
+    static Vector wrap(double[] data, int size) {
+        return new Vector(data, size, 0);
+    }
+
+    /**
+     * Returns a new categorical vector of the given size, initialized to 0.
+     */
+    static Vector allocateCategorical(int size) {
+        return new Vector(new byte[size], size, 0);
+    }
+
+    /**
+     * Returns a new categorical vector of the given size over the start of the given
+     * array, which may be longer.
+     */
+    static Vector wrapCategorical(byte[] codes, int size) {
+        return new Vector(codes, size, 0);
+    }
+
+    /**
+     * Returns true if this vector is categorical, that is, stores one byte per element.
+     *
+     * @return true for categorical vectors.
+     */
+    public boolean isCategorical() {
+        return codes != null;
+    }
+
+    /**
+     * Returns true if the data of this vector is stored off the heap.
+     *
+     * @return true for off-heap vectors.
+     */
+    public boolean isOffHeap() {
+        return buf != null;
+    }
+
     /**
      * Returns the ith data
      *
@@ -50,30 +199,233 @@ public class Vector {
      * @return the ith data.
      */
     public double get(int i) {
-        try {
-            return data[i + offset];
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return Double.NaN;
+        int k = i + offset;
+        return (k >= 0 && k < n) ? at(k) : Double.NaN;
+    }
+
+    /**
+     * Returns the element at the given position of the underlying storage.
+     */
+    private double at(int k) {
+        if (data != null) {
+            return data[k];
+        }
+        return (codes != null) ? decode(codes[k]) : buf.get(k);
+    }
+
+    /**
+     * Sets the element at the given position of the underlying storage.
+     */
+    private void put(int k, double val) {
+        if (data != null) {
+            data[k] = val;
+        } else if (codes != null) {
+            codes[k] = encode(val);
+        } else {
+            buf.put(k, val);
+        }
+    }
+
+    private static double decode(byte code) {
+        return (code == NAN_CODE) ? Double.NaN : code;
+    }
+
+    /**
+     * Returns the byte code of the given value of a categorical vector.
+     *
+     * @throws IllegalArgumentException if the value has no code.
+     */
+    static byte encode(double val) {
+        if (Double.isNaN(val)) {
+            return NAN_CODE;
+        }
+        byte code = (byte) val;
+        if (code != val || code == NAN_CODE) {
+            throw new IllegalArgumentException("Not a category: " + val);
+        }
+        return code;
+    }
+
+    /**
+     * Returns a lazy expression that reads this vector.
+     *
+     * @return the expression.
+     */
+    public Expr lazy() {
+        return Expr.of(this);
+    }
+
+    /**
+     * Returns the underlying array, or null if the data is not a {@code double[]}.  The
+     * array may be longer than this vector.
+     */
+    double[] array() {
+        return data;
+    }
+
+    /**
+     * Returns the underlying codes of a categorical vector, or null.  The array may be
+     * longer than this vector.
+     */
+    byte[] codes() {
+        return codes;
+    }
+
+    /**
+     * Returns the offset of this view into the underlying array.
+     */
+    int offset() {
+        return offset;
+    }
+
+    /**
+     * Copies the elements at indices {@code from} to {@code to} to {@code out}, starting
+     * at {@code pos}.  Missing elements are copied as NaN.
+     */
+    void copyTo(int from, int to, double[] out, int pos) {
+        int s = Math.max(from, Math.min(start(), to));
+        int e = Math.max(s, Math.min(end(), to));
+        Arrays.fill(out, pos, pos + s - from, Double.NaN);
+        if (e > s) {
+            if (data != null) {
+                System.arraycopy(data, s + offset, out, pos + s - from, e - s);
+            } else if (codes != null) {
+                for (int i = s; i < e; i++) {
+                    out[pos + i - from] = decode(codes[i + offset]);
+                }
+            } else {
+                DoubleBuffer src = buf.duplicate();
+                src.position(s + offset);
+                src.get(out, pos + s - from, e - s);
+            }
+        }
+        Arrays.fill(out, pos + e - from, pos + to - from, Double.NaN);
+    }
+
+    /**
+     * Writes {@code len} elements of {@code src}, starting at {@code pos}, to the
+     * underlying storage, starting at {@code from}.
+     */
+    void write(int from, double[] src, int pos, int len) {
+        if (data != null) {
+            System.arraycopy(src, pos, data, from, len);
+        } else if (codes != null) {
+            for (int i = 0; i < len; i++) {
+                codes[from + i] = encode(src[pos + i]);
+            }
+        } else {
+            DoubleBuffer dst = buf.duplicate();
+            dst.position(from);
+            dst.put(src, pos, len);
         }
     }
 
+    /**
+     * Returns the first index whose element is present.  Unlike {@link #lo()}, this
+     * may be past the size of this vector.
+     */
+    int start() {
+        return Math.max(0, -offset);
+    }
+
+    /**
+     * Returns one past the last index whose element is present.  Unlike {@link #hi()},
+     * this may be past the size of this vector.
+     */
+    int end() {
+        return Math.max(start(), n - offset);
+    }
+
+    /**
+     * Returns the first index below the size of this vector whose element is present.
+     */
+    private int lo() {
+        return Math.min(n, Math.max(0, -offset));
+    }
+
+    /**
+     * Returns one past the last index below the size of this vector whose element is
+     * present.
+     */
+    private int hi() {
+        return Math.max(lo(), Math.min(n, n - offset));
+    }
+
+    /**
+     * Returns the first index whose elements are present in both this vector and v.
+     */
+    private int lo(Vector v) {
+        return Math.min(n, Math.max(lo(), -v.offset));
+    }
+
+    /**
+     * Returns one past the last index whose elements are present in both this vector and v.
+     */
+    private int hi(Vector v) {
+        return Math.max(lo(v), Math.min(hi(), v.n - v.offset));
+    }
+
     /**
      * Get a copy of this data.
      *
      * @return a copy of this vector as double array.
      */
     public double[] getDataCopy() {
-        double[] ans = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            try {
-                ans[i] = data[i + offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                ans[i] = Double.NaN;
-            }
-        }
+        double[] ans = new double[n];
+        copyTo(ans);
+        return ans;
+    }
+
+    /**
+     * Copies this vector to the start of the given array.  Missing elements are copied
+     * as NaN.
+     *
+     * @param out the array, at least as long as this vector.
+     */
+    public void copyTo(double[] out) {
+        copyTo(0, n, out, 0);
+    }
+
+    /**
+     * Returns a new vector with the given vector appended to the end of this vector.
+     * The result is categorical if both vectors are.
+     *
+     * @param tail the vector to append.
+     * @return the concatenated vector.
+     */
+    public Vector append(Vector tail) {
+        Vector ans = (codes != null && tail.codes != null) ? allocateCategorical(n + tail.n) : allocate(n + tail.n);
+        ans.transfer(this, 0);
+        ans.transfer(tail, n);
         return ans;
     }
 
+    /**
+     * Returns a copy of this vector with no offset, categorical if this vector is, and
+     * missing elements NaN.
+     */
+    Vector copy() {
+        Vector ans = (codes != null) ? allocateCategorical(n) : allocate(n);
+        ans.transfer(this, 0);
+        return ans;
+    }
+
+    /**
+     * Copies the given vector to the underlying storage, starting at {@code pos}.
+     */
+    private void transfer(Vector src, int pos) {
+        if (data != null) {
+            src.copyTo(0, src.n, data, pos);
+            return;
+        }
+        double[] block = new double[Math.min(BLOCK, src.n)];
+        for (int from = 0; from < src.n; from += BLOCK) {
+            int to = Math.min(from + BLOCK, src.n);
+            src.copyTo(from, to, block, 0);
+            write(pos + from, block, 0, to - from);
+        }
+    }
+
     /**
      * Returns the difference vector.
      *
@@ -81,38 +433,77 @@ public class Vector {
      * @return the difference vector.
      */
     public Vector sub(Vector v) {
-        double[] ans = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            try {
-                ans[i] = data[i + offset] - v.data[i + v.offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                ans[i] = Double.NaN;
-            }
-        }
-        return new Vector(ans);
+        return lazy().sub(v.lazy()).eval();
     }
 
     /**
      * Returns a vector that is 1 if vlist[0] is true, else 2 if
-     * vlist[1] is true, and so on.
+     * vlist[1] is true, and so on.  Use {@link #cond(Mask...)} for a categorical
+     * result.
      *
      * @param vlist the vector list.
      * @return the result vector.
      */
     public static Vector cond(Vector... vlist) {
         int n = vlist.length;
-        int n2 = vlist[0].data.length;
-        double[] ans = new double[n2];
-        for (int i = 0; i < n2; i++) {
-            ans[i] = 0;
-            for (int j = 0; j < n; j++) {
-                if (vlist[j].get(i) == 1) {
-                    ans[i] = j + 1;
-                    break;
+        int n2 = vlist[0].n;
+        Vector ans = allocate(n2);
+        Parallel.forRange(0, n2, 1, (c, from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < n; j++) {
+                    if (vlist[j].get(i) == 1) {
+                        ans.put(i, j + 1);
+                        break;
+                    }
                 }
             }
+        });
+        return ans;
+    }
+
+    /**
+     * Returns a categorical vector that is 1 where masks[0] is set, else 2 where
+     * masks[1] is set, and so on, and 0 where no mask is set.  The masks are combined
+     * 64 elements at a time.
+     *
+     * @param masks the masks, at most 126.
+     * @return the result vector, with the size of the first mask.
+     */
+    public static Vector cond(Mask... masks) {
+        return cond(null, masks);
+    }
+
+    /**
+     * Returns a categorical vector that is 1 where masks[0] is set, else 2 where
+     * masks[1] is set, and so on, and 0 where no mask is set, allocated from the given
+     * arena.
+     *
+     * @param arena the arena, or null to allocate a new vector.
+     * @param masks the masks, at most 126.
+     * @return the result vector, with the size of the first mask.
+     */
+    public static Vector cond(Arena arena, Mask... masks) {
+        if (masks.length >= Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many masks: " + masks.length);
         }
-        return new Vector(ans);
+        int size = masks[0].size();
+        Vector v = (arena != null) ? arena.allocateCategorical(size) : allocateCategorical(size);
+        byte[] ans = v.codes;
+        Arrays.fill(ans, 0, size, (byte) 0);
+        for (int w = 0; w << 6 < size; w++) {
+            long left = -1L;
+            for (int j = 0; j < masks.length && left != 0; j++) {
+                long hit = masks[j].word(w) & left;
+                left &= ~hit;
+                for (; hit != 0; hit &= hit - 1) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(hit);
+                    if (i < size) {
+                        ans[i] = (byte) (j + 1);
+                    }
+                }
+            }
+        }
+        return v;
     }
 
     /**
@@ -122,15 +513,7 @@ public class Vector {
      * @return the product vector.
      */
     public Vector mult(Vector v) {
-        double[] ans = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            try {
-                ans[i] = data[i + offset] * v.data[i + v.offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                ans[i] = Double.NaN;
-            }
-        }
-        return new Vector(ans);
+        return lazy().mult(v.lazy()).eval();
     }
 
     /**
@@ -140,18 +523,51 @@ public class Vector {
      * @return the difference vector.
      */
     public Vector subi(Vector v) {
-        for (int i = 0; i < data.length; i++) {
-            try {
-                data[i + offset] = data[i + offset] - v.data[i + v.offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                if (0 <= i + offset && i + offset < data.length) {
-                    data[i + offset] = Double.NaN;
+        // walk in index order, as v may be a view of the same array.
+        int lo = lo(v);
+        int hi = hi(v);
+        fillNaN(lo(), lo);
+        int da = offset;
+        int db = v.offset;
+        Parallel.Range body;
+        if (data != null && v.data != null) {
+            double[] a = data;
+            double[] b = v.data;
+            body = (c, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    a[i + da] = a[i + da] - b[i + db];
                 }
-            }
+            };
+        } else {
+            body = (c, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    put(i + da, at(i + da) - v.at(i + db));
+                }
+            };
         }
+        forRange(v, lo, hi, body);
+        fillNaN(hi, hi());
         return this;
     }
 
+    /**
+     * Runs an in-place loop over the given index range, in parallel unless v is a view
+     * of the same data, in which case the loop must walk in index order.
+     */
+    private void forRange(Vector v, int lo, int hi, Parallel.Range body) {
+        boolean shared;
+        if (data != null) {
+            shared = data == v.data;
+        } else {
+            shared = (codes != null) ? codes == v.codes : buf == v.buf;
+        }
+        if (shared) {
+            body.run(0, lo, hi);
+        } else {
+            Parallel.forRange(lo, hi, 1, body);
+        }
+    }
+
     /**
      * Returns a shifted vesion of this vector.
      * <p/>
@@ -161,7 +577,10 @@ public class Vector {
      * @return a shifted vector.
      */
     public Vector shift(int offset) {
-        return new Vector(data, offset);
+        if (data != null) {
+            return new Vector(data, n, offset);
+        }
+        return (codes != null) ? new Vector(codes, n, offset) : new Vector(buf, offset);
     }
 
     /**
@@ -171,16 +590,7 @@ public class Vector {
      * @return the max.
      */
     public Vector max(Vector b) {
-        int n = this.data.length;
-        double[] data = new double[n];
-        for (int i = 0; i < n; i++) {
-            try {
-                data[i] = Math.max(this.data[i + this.offset], b.data[i + b.offset]);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = Double.NaN;
-            }
-        }
-        return new Vector(data);
+        return lazy().max(b.lazy()).eval();
     }
 
     /**
@@ -190,16 +600,7 @@ public class Vector {
      * @return the min.
      */
     public Vector min(Vector b) {
-        int n = this.data.length;
-        double[] data = new double[n];
-        for (int i = 0; i < n; i++) {
-            try {
-                data[i] = Math.min(this.data[i + this.offset], b.data[i + b.offset]);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = Double.NaN;
-            }
-        }
-        return new Vector(data);
+        return lazy().min(b.lazy()).eval();
     }
 
     /**
@@ -209,18 +610,7 @@ public class Vector {
      * @return the new vector
      */
     public Vector gt(Vector b) {
-        int n = this.data.length;
-        double[] data = new double[n];
-        for (int i = 0; i < n; i++) {
-            try {
-                double a1 = this.data[i + this.offset];
-                double a2 = b.data[i + b.offset];
-                data[i] = (a1 > a2) ? 1 : 0;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = 0;
-            }
-        }
-        return new Vector(data);
+        return lazy().gt(b.lazy()).eval();
     }
 
     /**
@@ -230,17 +620,7 @@ public class Vector {
      * @return the new vector
      */
     public Vector gt(double thres) {
-        int n = this.data.length;
-        double[] data = new double[n];
-        for (int i = 0; i < n; i++) {
-            try {
-                double a1 = this.data[i + this.offset];
-                data[i] = (a1 > thres) ? 1 : 0;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = Double.NaN;
-            }
-        }
-        return new Vector(data);
+        return lazy().gt(thres).eval();
     }
 
     /**
@@ -249,16 +629,7 @@ public class Vector {
      * @return the inverse of this vector.
      */
     public Vector not() {
-        int n = this.data.length;
-        double[] data = new double[n];
-        for (int i = 0; i < n; i++) {
-            try {
-                data[i] = (this.data[i + this.offset] == 0) ? 1 : 0;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = Double.NaN;
-            }
-        }
-        return new Vector(data);
+        return lazy().not().eval();
     }
 
     /**
@@ -266,7 +637,7 @@ public class Vector {
      * @return size of this vector.
      */
     public int size() {
-        return data.length;
+        return n;
     }
 
     /**
@@ -275,17 +646,253 @@ public class Vector {
      * @return the inverse of this vector.
      */
     public Vector integral() {
-        int n = this.data.length;
-        double[] data = new double[n];
-        data[0] = get(0);
-        for (int i = 1; i < n; i++) {
-            try {
-                data[i] = this.data[i + this.offset] + data[i - 1];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                data[i] = Double.NaN;
+        return integral(null);
+    }
+
+    /**
+     * Returns the integral of this vector, allocated from the given arena.
+     *
+     * @param arena the arena, or null to allocate a new vector.
+     * @return the integral of this vector.
+     */
+    public Vector integral(Arena arena) {
+        Vector ans = (arena != null) ? arena.allocate(n) : allocate(n);
+        int lo = Math.max(lo(), 1);
+        int hi = Math.max(hi(), lo);
+        int dx = this.offset;
+        if (ans.data != null && this.data != null) {
+            double[] data = ans.data;
+            double[] x = this.data;
+            data[0] = get(0);
+            // a missing first element makes the whole sum NaN.
+            Arrays.fill(data, 1, lo, Double.NaN);
+            if (Parallel.isParallel(hi - lo)) {
+                scan(x, dx, data, lo, hi);
+            } else {
+                for (int i = lo; i < hi; i++) {
+                    data[i] = x[i + dx] + data[i - 1];
+                }
+            }
+            Arrays.fill(data, hi, n, Double.NaN);
+        } else {
+            double sum = get(0);
+            ans.put(0, sum);
+            for (int i = 1; i < n; i++) {
+                sum = (i >= lo && i < hi) ? at(i + dx) + sum : Double.NaN;
+                ans.put(i, sum);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Writes the running sum of {@code x[i + dx]}, starting from {@code sum[lo - 1]},
+     * to {@code sum[i]} for {@code lo <= i < hi}.  This is a two-pass parallel scan:
+     * each chunk first sums its own elements, then adds the total of the chunks before it.
+     */
+    private static void scan(double[] x, int dx, double[] sum, int lo, int hi) {
+        int[] bounds = Parallel.split(lo, hi, 1);
+        Parallel.forChunks(bounds, (c, from, to) -> {
+            double acc = (c == 0) ? sum[from - 1] : 0;
+            for (int i = from; i < to; i++) {
+                acc = x[i + dx] + acc;
+                sum[i] = acc;
+            }
+        });
+        double[] carry = new double[bounds.length - 1];
+        for (int c = 1; c < carry.length; c++) {
+            carry[c] = sum[bounds[c] - 1] + carry[c - 1];
+        }
+        Parallel.forChunks(bounds, (c, from, to) -> {
+            double add = carry[c];
+            if (c > 0) {
+                for (int i = from; i < to; i++) {
+                    sum[i] = sum[i] + add;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the sum of each window of the given number of elements, ending at each
+     * element.  It is NaN until the first window is full, and where a window holds a
+     * NaN or a missing element.  The sum is compensated, so it does not drift.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling sum.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingSum(int window) {
+        return rollingSum(window, null);
+    }
+
+    /**
+     * Returns the rolling sum, see {@link #rollingSum(int)}, allocated from the given
+     * arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling sum.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingSum(int window, Arena arena) {
+        return rolling(Rolling.sum(window), arena);
+    }
+
+    /**
+     * Returns the mean of each window of the given number of elements, ending at each
+     * element, like {@link #rollingSum(int)}.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling mean.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMean(int window) {
+        return rollingMean(window, null);
+    }
+
+    /**
+     * Returns the rolling mean, see {@link #rollingMean(int)}, allocated from the given
+     * arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling mean.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMean(int window, Arena arena) {
+        return rolling(Rolling.mean(window), arena);
+    }
+
+    /**
+     * Returns the min of each window of the given number of elements, ending at each
+     * element, like {@link #rollingSum(int)}.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling min.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMin(int window) {
+        return rollingMin(window, null);
+    }
+
+    /**
+     * Returns the rolling min, see {@link #rollingMin(int)}, allocated from the given
+     * arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling min.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMin(int window, Arena arena) {
+        return rolling(Rolling.min(window), arena);
+    }
+
+    /**
+     * Returns the max of each window of the given number of elements, ending at each
+     * element, like {@link #rollingSum(int)}.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling max.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMax(int window) {
+        return rollingMax(window, null);
+    }
+
+    /**
+     * Returns the rolling max, see {@link #rollingMax(int)}, allocated from the given
+     * arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling max.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingMax(int window, Arena arena) {
+        return rolling(Rolling.max(window), arena);
+    }
+
+    /**
+     * Returns the sample variance of each window of the given number of elements,
+     * ending at each element, like {@link #rollingSum(int)}.  It is NaN for a window of 1.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling variance.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingVariance(int window) {
+        return rollingVariance(window, null);
+    }
+
+    /**
+     * Returns the rolling variance, see {@link #rollingVariance(int)}, allocated from
+     * the given arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling variance.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingVariance(int window, Arena arena) {
+        return rolling(Rolling.variance(window), arena);
+    }
+
+    /**
+     * Returns the sample standard deviation of each window of the given number of
+     * elements, ending at each element, like {@link #rollingVariance(int)}.
+     *
+     * @param window the number of elements in a window.
+     * @return the rolling standard deviation.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingStd(int window) {
+        return rollingStd(window, null);
+    }
+
+    /**
+     * Returns the rolling standard deviation, see {@link #rollingStd(int)}, allocated
+     * from the given arena.
+     *
+     * @param window the number of elements in a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the rolling standard deviation.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public Vector rollingStd(int window, Arena arena) {
+        return rolling(Rolling.std(window), arena);
+    }
+
+    /**
+     * Runs the given rolling statistic over the present elements, in one pass in index
+     * order.
+     */
+    private Vector rolling(Rolling stat, Arena arena) {
+        Vector ans = (arena != null) ? arena.allocate(n) : allocate(n);
+        int lo = lo();
+        int hi = hi();
+        ans.fillNaN(0, lo);
+        ans.fillNaN(hi, n);
+        double[] in = (data == null) ? new double[Math.min(BLOCK, hi - lo)] : null;
+        double[] out = (ans.data == null) ? new double[Math.min(BLOCK, hi - lo)] : null;
+        for (int s = lo; s < hi; s += BLOCK) {
+            int len = Math.min(BLOCK, hi - s);
+            double[] x = data;
+            int pos = s + offset;
+            if (x == null) {
+                copyTo(s, s + len, in, 0);
+                x = in;
+                pos = 0;
+            }
+            if (out == null) {
+                stat.run(x, pos, ans.data, s, len);
+            } else {
+                stat.run(x, pos, out, 0, len);
+                ans.write(s, out, 0, len);
             }
         }
-        return new Vector(data);
+        return ans;
     }
 
     /**
@@ -306,14 +913,7 @@ public class Vector {
      * @return this vector.
      */
     public Vector scaleAdd(double scale, Vector b) {
-        double[] ans = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            try {
-                ans[i] = data[i + offset] * scale + b.data[i + b.offset];
-            } catch (ArrayIndexOutOfBoundsException ignored) {
-            }
-        }
-        return new Vector(ans);
+        return lazy().scaleAdd(scale, b.lazy()).eval();
     }
 
     /**
@@ -324,15 +924,30 @@ public class Vector {
      * @return this vector.
      */
     public Vector scaleAddi(double scale, Vector b) {
-        for (int i = 0; i < data.length; i++) {
-            try {
-                data[i + offset] = data[i + offset] * scale + b.data[i + b.offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                if (0 <= i + offset && i + offset < data.length) {
-                    data[i + offset] = Double.NaN;
+        // walk in index order, as b may be a view of the same array.
+        int lo = lo(b);
+        int hi = hi(b);
+        fillNaN(lo(), lo);
+        int dx = offset;
+        int dy = b.offset;
+        Parallel.Range body;
+        if (data != null && b.data != null) {
+            double[] x = data;
+            double[] y = b.data;
+            body = (c, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    x[i + dx] = x[i + dx] * scale + y[i + dy];
                 }
-            }
+            };
+        } else {
+            body = (c, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    put(i + dx, at(i + dx) * scale + b.at(i + dy));
+                }
+            };
         }
+        forRange(b, lo, hi, body);
+        fillNaN(hi, hi());
         return this;
     }
 
@@ -343,15 +958,136 @@ public class Vector {
      * @return the new vector
      */
     public Vector apply(Op op) {
-        double[] ans = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            try {
-                ans[i] = op.apply(data[i + offset]);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                ans[i] = Double.NaN;
+        return lazy().apply(op).eval();
+    }
+
+    /**
+     * Bins this vector by the given cut points, in one pass.  Each element falls into
+     * category {@code first + i}, where {@code cuts[i]} is the first cut point above it,
+     * or {@code first + cuts.length} if there is none, as for NaN.  Missing elements are
+     * NaN.  When the cut points ascend, the category is the number of cut points not
+     * above the element, counted without branches.
+     *
+     * @param cuts  the cut points.
+     * @param first the category below the first cut point.
+     * @param arena the arena, or null to allocate a new vector.
+     * @return the categories, as a categorical vector.
+     * @throws IllegalArgumentException if a category does not fit in a categorical vector.
+     */
+    public Vector bin(double[] cuts, int first, Arena arena) {
+        encode(first);
+        encode(first + cuts.length);
+        boolean ascending = cuts.length == 0 || !Double.isNaN(cuts[0]);
+        for (int c = 1; c < cuts.length; c++) {
+            ascending &= cuts[c - 1] <= cuts[c];
+        }
+        final boolean counted = ascending;
+        Vector ans = (arena != null) ? arena.allocateCategorical(n) : allocateCategorical(n);
+        byte[] out = ans.codes;
+        int lo = lo();
+        int hi = hi();
+        Arrays.fill(out, 0, lo, NAN_CODE);
+        Arrays.fill(out, hi, n, NAN_CODE);
+        Parallel.forRange(lo, hi, 1, (chunk, from, to) -> {
+            double[] block = (data == null) ? new double[Math.min(BLOCK, to - from)] : null;
+            for (int s = from; s < to; s += BLOCK) {
+                int e = Math.min(s + BLOCK, to);
+                double[] x = data;
+                int dx = s + offset;
+                if (x == null) {
+                    copyTo(s, e, block, 0);
+                    x = block;
+                    dx = 0;
+                }
+                int base = dx - s;
+                if (counted) {
+                    for (int i = s; i < e; i++) {
+                        double val = x[base + i];
+                        int code = first;
+                        for (double cut : cuts) {
+                            code += (val < cut) ? 0 : 1;
+                        }
+                        out[i] = (byte) code;
+                    }
+                } else {
+                    for (int i = s; i < e; i++) {
+                        double val = x[base + i];
+                        int c = 0;
+                        while (c < cuts.length && !(val < cuts[c])) {
+                            c++;
+                        }
+                        out[i] = (byte) (first + c);
+                    }
+                }
             }
+        });
+        return ans;
+    }
+
+    /**
+     * Bins each element by the given percentiles of the window of elements ending at it,
+     * so a category never depends on later elements.  Each element falls into category
+     * {@code first + i}, where the ith percentile of its window is the first one above
+     * it, like {@link #bin(double[], int, Arena)} with those percentiles as cut points.
+     * <p>
+     * The elements of the window are kept in a {@link RankTree}: each step adds one
+     * element and removes the one leaving the window, and each percentile takes two
+     * selections, all in O(log window).  The percentiles are estimated like those of
+     * {@link util.Quantiles}, but NaNs are not counted.  Large vectors are binned in
+     * chunks in parallel, each starting with a tree of the window before it.  The
+     * categories are NaN until the window is full, as with {@link #rollingSum(int)},
+     * and where elements are missing.
+     * </p>
+     *
+     * @param window      the number of elements in a window.
+     * @param percentiles the percentiles, in ascending order, from 0 to 100.
+     * @param first       the category below the first percentile.
+     * @param arena       the arena, or null to allocate a new vector.
+     * @return the categories, as a categorical vector.
+     * @throws IllegalArgumentException if the window is not positive, or a category does
+     *                                  not fit in a categorical vector.
+     */
+    public Vector rollingBin(int window, double[] percentiles, int first, Arena arena) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive: " + window);
+        }
+        encode(first);
+        encode(first + percentiles.length);
+        Vector ans = (arena != null) ? arena.allocateCategorical(n) : allocateCategorical(n);
+        byte[] out = ans.codes;
+        int lo = lo();
+        int hi = hi();
+        int full = (int) Math.min(hi, (long) lo + window - 1);
+        Arrays.fill(out, 0, full, NAN_CODE);
+        Arrays.fill(out, hi, n, NAN_CODE);
+        if (full == hi) {
+            return ans;
         }
-        return new Vector(ans, 0);
+        Parallel.forRange(full, hi, 1, (chunk, from, to) -> {
+            RankTree tree = new RankTree();
+            for (int i = from - window + 1; i < from; i++) {
+                double val = at(i + offset);
+                if (val == val) {
+                    tree.add(val);
+                }
+            }
+            for (int i = from; i < to; i++) {
+                double val = at(i + offset);
+                if (val == val) {
+                    tree.add(val);
+                }
+                int c = 0;
+                while (c < percentiles.length && !(val < tree.percentile(percentiles[c]))) {
+                    c++;
+                }
+                out[i] = (byte) (first + c);
+                double old = at(i - window + 1 + offset);
+                if (old == old) {
+                    tree.remove(old);
+                }
+            }
+        });
+        return ans;
     }
 
     /**
@@ -361,12 +1097,11 @@ public class Vector {
      * @return this vector
      */
     public Vector applyi(Op op) {
-        for (int i = 0; i < data.length; i++) {
-            try {
-                data[i + offset] = op.apply(data[i + offset]);
-            } catch (ArrayIndexOutOfBoundsException ignored) {
+        Parallel.forRange(lo() + offset, hi() + offset, 1, (c, from, to) -> {
+            for (int k = from; k < to; k++) {
+                put(k, op.apply(at(k)));
             }
-        }
+        });
         return this;
     }
 
@@ -378,14 +1113,29 @@ public class Vector {
      * @return this vector
      */
     public Vector scalei(double scale) {
-        for (int i = 0; i < data.length; i++) {
-            try {
-                data[i + offset] = scale * data[i + offset];
-            } catch (ArrayIndexOutOfBoundsException ignored) {
+        Parallel.forRange(lo() + offset, hi() + offset, 1, (c, from, to) -> {
+            if (data != null) {
+                for (int k = from; k < to; k++) {
+                    data[k] = scale * data[k];
+                }
+            } else {
+                for (int k = from; k < to; k++) {
+                    put(k, scale * at(k));
+                }
             }
-        }
+        });
         return this;
     }
 
+    /**
+     * Sets the present elements in the given index range to NaN.
+     */
+    private void fillNaN(int from, int to) {
+        to = Math.min(to, hi());
+        for (int i = from; i < to; i++) {
+            put(i + offset, Double.NaN);
+        }
+    }
+
 
 }
@@ -0,0 +1,194 @@
+package io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import data.PostProcess;
+import data.Vector;
+
+/**
+ * Loads the databases of many instruments in parallel on a bounded thread pool.
+ * <p>
+ * The instruments are either a set of files, one per instrument and named after
+ * the file, or all sheets of one workbook, named after the sheet.  Each instrument
+ * is read with a {@link DataReader} and, unless disabled, post-processed with
+ * {@link PostProcess#postProcess(List)}, so the schema must then read date, open,
+ * max, min, close and volume, in this order.
+ * </p>
+ * <p>
+ * An instrument that fails to load is left out of the result, and its error
+ * message is reported by {@link #getErrMsg()}.
+ * </p>
+ *
+ * @author Eric
+ */
+public class BatchLoader {
+
+    private final ReadSchema schema;
+    private final int numThreads;
+    private final boolean postProcess;
+    private final Map<String, String> errors;
+    private String msg;
+
+    /**
+     * Create a new BatchLoader that post-processes the data, using one thread per core.
+     *
+     * @param schema the columns to read.
+     */
+    public BatchLoader(ReadSchema schema) {
+        this(schema, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Create a new BatchLoader.
+     *
+     * @param schema      the columns to read.
+     * @param numThreads  the maximum number of instruments loaded at once.
+     * @param postProcess true to compute the derived columns of each instrument.
+     */
+    public BatchLoader(ReadSchema schema, int numThreads, boolean postProcess) {
+        this.schema = schema;
+        this.numThreads = Math.max(numThreads, 1);
+        this.postProcess = postProcess;
+        errors = new LinkedHashMap<>();
+        msg = "";
+    }
+
+    /**
+     * Loads the given files, one instrument per file.  The instrument name is the file
+     * name without extension.
+     *
+     * @param files the database file names.
+     * @return the data of each instrument that loaded, in the order given.
+     */
+    public Map<String, List<Vector>> loadFiles(Collection<String> files) {
+        Map<String, Callable<List<Vector>>> jobs = new LinkedHashMap<>();
+        errors.clear();
+        for (String file : files) {
+            String name = new File(file).getName();
+            int dot = name.lastIndexOf('.');
+            name = (dot > 0) ? name.substring(0, dot) : name;
+            if (jobs.containsKey(name)) {
+                errors.put(file, String.format("Error: duplicate instrument %s", name));
+            } else {
+                jobs.put(name, () -> load(DataReader.create(file, schema)));
+            }
+        }
+        return run(jobs);
+    }
+
+    /**
+     * Loads all sheets of the given workbook, one instrument per sheet.  The instrument
+     * name is the sheet name.
+     *
+     * @param workbook the workbook file name.
+     * @return the data of each instrument that loaded, in sheet order, or null if the
+     * sheets cannot be listed.
+     */
+    public Map<String, List<Vector>> loadSheets(String workbook) {
+        errors.clear();
+        ExcelReader index = new ExcelReader(workbook, schema);
+        List<String> names = index.getSheetNames();
+        if (names == null) {
+            errors.put(workbook, index.getErrMsg());
+            msg = formatErrors();
+            return null;
+        }
+        Map<String, Callable<List<Vector>>> jobs = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            int sheetIndex = i;
+            jobs.put(names.get(i), () -> load(new ExcelReader(workbook, sheetIndex, schema, true)));
+        }
+        return run(jobs);
+    }
+
+    /**
+     * Returns the error message of each instrument that failed in the last load.
+     *
+     * @return the error message by instrument or file name.
+     */
+    public Map<String, String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the error messages of the last load, one instrument per line. If no
+     * errors occur, an empty string is returned.
+     *
+     * @return the error message.
+     */
+    public String getErrMsg() {
+        return msg;
+    }
+
+    private Map<String, List<Vector>> run(Map<String, Callable<List<Vector>>> jobs) {
+        Map<String, List<Vector>> ans = new LinkedHashMap<>();
+        if (!jobs.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, jobs.size()));
+            try {
+                Map<String, Future<List<Vector>>> results = new LinkedHashMap<>();
+                for (Map.Entry<String, Callable<List<Vector>>> job : jobs.entrySet()) {
+                    results.put(job.getKey(), pool.submit(job.getValue()));
+                }
+                for (Map.Entry<String, Future<List<Vector>>> result : results.entrySet()) {
+                    try {
+                        ans.put(result.getKey(), result.getValue().get());
+                    } catch (ExecutionException e) {
+                        Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                        errors.put(result.getKey(), cause.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put("", "Error: loading interrupted");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        msg = formatErrors();
+        return ans;
+    }
+
+    private List<Vector> load(DataReader reader) throws LoadException {
+        List<Vector> data = reader.getData();
+        if (data == null) {
+            throw new LoadException(reader.getErrMsg());
+        }
+        data = new ArrayList<>(data);
+        if (postProcess) {
+            PostProcess.postProcess(data);
+        }
+        return data;
+    }
+
+    private String formatErrors() {
+        StringBuilder b = new StringBuilder();
+        for (Map.Entry<String, String> err : errors.entrySet()) {
+            if (b.length() > 0) {
+                b.append('\n');
+            }
+            b.append(err.getKey()).append(": ").append(err.getValue());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Carries the error message of a reader out of a worker thread.
+     */
+    private static class LoadException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        LoadException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import data.Storage;
+import data.Vector;
+
+/**
+ * A binary columnar cache of the data read by {@link ExcelReader}, stored next to
+ * the database file.
+ * <p>
+ * The cache records the size, modification time and CRC32 of the database it was
+ * built from, and the {@link ReadSchema} it was read with.  It is valid while the
+ * size and modification time are the same, so a warm start reads neither POI nor
+ * the database.  If only the modification time changed, as after a copy, the CRC32
+ * decides, and a match is recorded so the next start is fast again.
+ * </p>
+ * <p>
+ * The columns are copied into {@link Vector}s rather than wrapping a mapping
+ * of the file: the vectors outlive the load and may be changed in place, and a
+ * mapping is only released when it is garbage collected, which on Windows keeps
+ * {@link #save(List)} from replacing the file.
+ * </p>
+ * <p>
+ * An out of date cache can still be loaded as a snapshot with
+ * {@link #loadSnapshot()}, so that only the rows appended since can be read
+ * from the database.
+ * </p>
+ * <p>
+ * Layout: a 48 byte header (magic, version, database size, modification time,
+ * CRC32, number of columns, number of rows, schema hash), then each column as little-endian
+ * doubles.
+ * </p>
+ *
+ * @author Eric
+ */
+public class ColumnCache {
+
+    private static final int MAGIC = 0x51584331;  // "QXC1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 48;
+    private static final int BUF_SIZE = 1 << 16;
+    private static final String SUFFIX = ".cache";
+
+    private final File dbFile;
+    private final File cacheFile;
+    private final ReadSchema schema;
+    private String msg;
+
+    /**
+     * Create a new ColumnCache instance.
+     *
+     * @param dbFile the database file name.
+     * @param schema the columns read from the database.
+     */
+    public ColumnCache(String dbFile, ReadSchema schema) {
+        this.dbFile = new File(dbFile);
+        this.schema = schema;
+        this.cacheFile = new File(dbFile + SUFFIX);
+        msg = "";
+    }
+
+    /**
+     * Returns the cached data, or null if there is no valid cache for the current
+     * database.  In this case, call {@link #getErrMsg()} to see why.
+     *
+     * @return the cached data.
+     */
+    public List<Vector> load() {
+        return read(true);
+    }
+
+    /**
+     * Returns the cached data even if the database changed since, or null if there is
+     * no readable cache.  In this case, call {@link #getErrMsg()} to see why.
+     *
+     * @return the cached data.
+     */
+    public List<Vector> loadSnapshot() {
+        return read(false);
+    }
+
+    private List<Vector> read(boolean checkSource) {
+        if (!cacheFile.isFile()) {
+            msg = String.format("No cache file %s", cacheFile.getName());
+            return null;
+        }
+        boolean touched = false;
+        List<Vector> ans;
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+             FileChannel ch = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (ch.size() < HEADER_SIZE || !readFully(ch, header)
+                    || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                msg = String.format("Error: %s is not a cache file", cacheFile.getName());
+                return null;
+            }
+            int ncol = header.getInt(32);
+            int nrow = header.getInt(36);
+            if (ncol != schema.size() || nrow < 0 || header.getInt(40) != schema.hashCode()
+                    || ch.size() != HEADER_SIZE + 8L * ncol * nrow) {
+                msg = String.format("Error: cache file %s does not match", cacheFile.getName());
+                return null;
+            }
+            if (checkSource) {
+                long mtime = dbFile.lastModified();
+                if (header.getLong(8) != dbFile.length()
+                        || (header.getLong(16) != mtime && header.getLong(24) != hash(dbFile))) {
+                    msg = String.format("Cache file %s is out of date", cacheFile.getName());
+                    return null;
+                }
+                touched = header.getLong(16) != mtime;
+            }
+
+            // one column at a time, read in chunks of BUF_SIZE bytes, as a column of more
+            // than Integer.MAX_VALUE / 8 rows does not fit in one buffer.
+            ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ans = new ArrayList<>(ncol);
+            for (int j = 0; j < ncol; j++) {
+                double[] values = new double[nrow];
+                for (int i = 0; i < nrow; ) {
+                    buf.clear();
+                    buf.limit((int) Math.min(BUF_SIZE, 8L * (nrow - i)));
+                    if (!readFully(ch, buf)) {
+                        throw new EOFException(cacheFile.getName());
+                    }
+                    buf.flip();
+                    int k = buf.remaining() / 8;
+                    buf.asDoubleBuffer().get(values, i, k);
+                    i += k;
+                }
+                ans.add(Storage.isOffHeap(nrow)
+                        ? Vector.copyOf(DoubleBuffer.wrap(values), nrow) : new Vector(values));
+            }
+        } catch (IOException e) {
+            msg = e.getMessage();
+            return null;
+        }
+        if (touched) {
+            touch();
+        }
+        msg = "";
+        return ans;
+    }
+
+    /**
+     * Records the current modification time of the database in the cache, once its
+     * content is found unchanged.  A cache that cannot be updated stays valid.
+     */
+    private void touch() {
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.seek(16);
+            raf.writeLong(Long.reverseBytes(dbFile.lastModified()));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reads from the current position of the channel until the buffer is full.
+     *
+     * @return false if the channel ends first.
+     */
+    private static boolean readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given data to the cache file.  The file is first written under a
+     * temporary name, then moved in place.
+     *
+     * @param data the data read from the database.
+     * @return true if the cache was written.
+     */
+    public boolean save(List<Vector> data) {
+        int ncol = data.size();
+        int nrow = (ncol == 0) ? 0 : data.get(0).size();
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                 FileChannel ch = raf.getChannel()) {
+                ch.truncate(0);
+                buf.putInt(MAGIC).putInt(VERSION);
+                buf.putLong(dbFile.length()).putLong(dbFile.lastModified()).putLong(hash(dbFile));
+                buf.putInt(ncol).putInt(nrow).putInt(schema.hashCode());
+                buf.position(HEADER_SIZE);
+                for (Vector v : data) {
+                    for (int i = 0; i < nrow; i++) {
+                        if (!buf.hasRemaining()) {
+                            write(ch, buf);
+                        }
+                        buf.putDouble(v.get(i));
+                    }
+                }
+                write(ch, buf);
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            msg = "";
+            return true;
+        } catch (IOException e) {
+            msg = String.format("Error: cannot write cache file %s\nMessage: %s", cacheFile.getName(), e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the error message of the last operation. If no errors occur, an empty
+     * string is returned.
+     *
+     * @return the error message.
+     */
+    public String getErrMsg() {
+        return msg;
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Returns the CRC32 of the given file content.
+     *
+     * @param f the file.
+     * @return the CRC32 value.
+     * @throws IOException if the file cannot be read.
+     */
+    static long hash(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[BUF_SIZE];
+        try (InputStream inp = new FileInputStream(f)) {
+            int n;
+            while ((n = inp.read(buf)) > 0) {
+                crc.update(buf, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,422 @@
+package io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import data.Vector;
+
+/**
+ * A CSV/TSV file reader that returns the same columns as {@link ExcelReader}.
+ * <p>
+ * The file is read through a {@link FileChannel} into a fixed size buffer, and
+ * numbers and dates are parsed straight from the bytes, so no {@code String} is
+ * created per field and memory stays flat however large the file is.  Only the
+ * header row, if the {@link ReadSchema} needs one, is decoded as text.
+ * </p>
+ * <p>
+ * Fields of {@link ReadSchema.Type#DATE} columns may be ISO dates
+ * ({@code 2015-10-02}, optionally followed by a time), US dates
+ * ({@code 10/2/2015}) or Excel serial numbers, and are returned as Excel serial
+ * numbers, like dates read from a workbook.  A date with a two-digit year, a day
+ * past the end of its month or a year before 1900 is an error, like a bad cell in a
+ * workbook.  Quoted fields are supported.
+ * </p>
+ *
+ * @author Eric
+ */
+public class CsvReader implements DataReader {
+
+    private static final int BUF_SIZE = 1 << 20;
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long EXCEL_EPOCH = daysFromCivil(1899, 12, 30);
+
+    private final String filename;
+    private final ReadSchema schema;
+    private final byte delim;
+    private String msg;
+
+    /**
+     * Create a new CsvReader that reads the first {@code numField} columns.
+     *
+     * @param filename name of the CSV file
+     * @param numField number of fields per row to read
+     */
+    public CsvReader(String filename, int numField) {
+        this(filename, ReadSchema.consecutive(numField));
+    }
+
+    /**
+     * Create a new CsvReader.  Files ending in .tsv or .tab are tab separated, all
+     * other files are comma separated.
+     *
+     * @param filename name of the CSV file
+     * @param schema   the columns to read
+     */
+    public CsvReader(String filename, ReadSchema schema) {
+        this(filename, schema, (filename.endsWith(".tsv") || filename.endsWith(".tab")) ? '\t' : ',');
+    }
+
+    /**
+     * Create a new CsvReader.
+     *
+     * @param filename name of the CSV file
+     * @param schema   the columns to read
+     * @param delim    the field separator
+     */
+    public CsvReader(String filename, ReadSchema schema, char delim) {
+        this.filename = filename;
+        this.schema = schema;
+        this.delim = (byte) delim;
+        msg = "";
+    }
+
+    /**
+     * Returns true if the given file is read by this class rather than by
+     * {@link ExcelReader}.
+     *
+     * @param filename the file name.
+     * @return true for .csv, .tsv, .tab and .txt files.
+     */
+    public static boolean accepts(String filename) {
+        String name = filename.toLowerCase();
+        return name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".tab") || name.endsWith(".txt");
+    }
+
+    @Override
+    public List<Vector> getData() {
+        return getData(null);
+    }
+
+    @Override
+    public List<Vector> getData(List<Vector> loaded) {
+        RowCollector collector = new RowCollector(schema, loaded);
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE);
+            int start = 0;
+            int row = 0;
+            boolean eof = false;
+            boolean bom = true;
+            while (!collector.isDone()) {
+                byte[] b = buf.array();
+                int end = findRecordEnd(b, start, buf.position());
+                if (end < 0) {
+                    if (eof) {
+                        if (start == buf.position()) {
+                            break;
+                        }
+                        end = buf.position();
+                    } else {
+                        // move the partial record to the front, growing the buffer if it is full.
+                        if (start == 0 && !buf.hasRemaining()) {
+                            buf = ByteBuffer.wrap(Arrays.copyOf(b, 2 * b.length));
+                            buf.position(b.length);
+                        } else {
+                            buf.flip().position(start);
+                            buf.compact();
+                        }
+                        start = 0;
+                        eof = ch.read(buf) < 0;
+                        if (bom) {
+                            start = skipBom(buf.array(), buf.position());
+                            bom = false;
+                        }
+                        continue;
+                    }
+                }
+                if (!collector.startRow(row)) {
+                    break;
+                }
+                parseRecord(collector, b, start, end);
+                start = Math.min(end + 1, buf.position());
+                row++;
+            }
+        } catch (IOException e) {
+            msg = e.getMessage();
+            return null;
+        }
+        List<Vector> ans = collector.finish();
+        msg = collector.getErrMsg();
+        return ans;
+    }
+
+    @Override
+    public String getErrMsg() {
+        return msg;
+    }
+
+    private static int skipBom(byte[] b, int limit) {
+        if (limit >= 3 && b[0] == (byte) 0xEF && b[1] == (byte) 0xBB && b[2] == (byte) 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of the newline ending the record that starts at {@code start},
+     * or -1 if the record is not complete.  Newlines inside quotes do not count.
+     */
+    private static int findRecordEnd(byte[] b, int start, int limit) {
+        boolean quoted = false;
+        for (int i = start; i < limit; i++) {
+            byte c = b[i];
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\n' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void parseRecord(RowCollector collector, byte[] b, int start, int end) {
+        if (end > start && b[end - 1] == '\r') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+        int col = 0;
+        int i = start;
+        while (i <= end) {
+            int s = i;
+            int e;
+            boolean quoted = i < end && b[i] == '"';
+            if (quoted) {
+                s++;
+                e = s;
+                while (e < end && !(b[e] == '"' && (e + 1 >= end || b[e + 1] != '"'))) {
+                    e += (b[e] == '"') ? 2 : 1;
+                }
+                i = e + 1;
+                while (i < end && b[i] != delim) {
+                    i++;
+                }
+            } else {
+                e = s;
+                while (e < end && b[e] != delim) {
+                    e++;
+                }
+                i = e;
+            }
+
+            if (collector.wants(col)) {
+                try {
+                    double val = (collector.typeOf(col) == ReadSchema.Type.DATE) ? parseDate(b, s, e) : parseNumber(b, s, e);
+                    if (!Double.isNaN(val)) {
+                        collector.number(col, val);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    collector.invalid(col, ex.getMessage());
+                }
+            } else if (collector.wantsText()) {
+                String text = new String(b, s, e - s, StandardCharsets.UTF_8);
+                collector.text(col, quoted ? text.replace("\"\"", "\"") : text);
+            }
+            col++;
+            i++;
+        }
+    }
+
+    /**
+     * Parses a decimal number such as {@code -1234.5e-3} from the given bytes.
+     *
+     * @param b the bytes.
+     * @param s start index, inclusive.
+     * @param e end index, exclusive.
+     * @return the number, or NaN if the bytes are not a number.
+     */
+    static double parseNumber(byte[] b, int s, int e) {
+        while (s < e && b[s] == ' ') {
+            s++;
+        }
+        while (e > s && b[e - 1] == ' ') {
+            e--;
+        }
+        int i = s;
+        boolean neg = false;
+        if (i < e && (b[i] == '-' || b[i] == '+')) {
+            neg = b[i] == '-';
+            i++;
+        }
+        int unsigned = i;
+        long mant = 0;
+        int digits = 0;
+        int exp10 = 0;
+        boolean any = false;
+        for (; i < e && b[i] >= '0' && b[i] <= '9'; i++) {
+            any = true;
+            if (digits < 18) {
+                mant = mant * 10 + (b[i] - '0');
+                if (mant != 0) {
+                    digits++;
+                }
+            } else {
+                exp10++;
+            }
+        }
+        if (i < e && b[i] == '.') {
+            for (i++; i < e && b[i] >= '0' && b[i] <= '9'; i++) {
+                any = true;
+                if (digits < 18) {
+                    mant = mant * 10 + (b[i] - '0');
+                    exp10--;
+                    if (mant != 0) {
+                        digits++;
+                    }
+                }
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (i < e && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean eneg = false;
+            if (i < e && (b[i] == '-' || b[i] == '+')) {
+                eneg = b[i] == '-';
+                i++;
+            }
+            if (i == e) {
+                return Double.NaN;
+            }
+            int x = 0;
+            for (; i < e && b[i] >= '0' && b[i] <= '9'; i++) {
+                x = Math.min(x * 10 + (b[i] - '0'), 100000);
+            }
+            exp10 += eneg ? -x : x;
+        }
+        if (i != e) {
+            return Double.NaN;
+        }
+
+        double val;
+        if (mant < (1L << 53) && Math.abs(exp10) <= 22) {
+            // both operands are exact, so one rounding gives the correctly rounded result.
+            val = (exp10 < 0) ? mant / POW10[-exp10] : mant * POW10[exp10];
+        } else {
+            // without the sign, which is applied below.
+            val = Double.parseDouble(new String(b, unsigned, e - unsigned, StandardCharsets.US_ASCII));
+        }
+        return neg ? -val : val;
+    }
+
+    /**
+     * Parses an ISO or US date, or an Excel serial number, from the given bytes.
+     *
+     * @param b the bytes.
+     * @param s start index, inclusive.
+     * @param e end index, exclusive.
+     * @return the Excel serial number, or NaN if the bytes are not a date.
+     * @throws IllegalArgumentException if the bytes are a date that cannot be read,
+     *                                  such as {@code 10/2/15} or {@code 2015-02-31}.
+     */
+    static double parseDate(byte[] b, int s, int e) {
+        while (s < e && b[s] == ' ') {
+            s++;
+        }
+        while (e > s && b[e - 1] == ' ') {
+            e--;
+        }
+        int i = s;
+        int f0 = 0;
+        for (; i < e && i - s < 5 && isDigit(b[i]); i++) {
+            f0 = f0 * 10 + (b[i] - '0');
+        }
+        int len0 = i - s;
+        if (len0 == 0 || len0 > 4 || i == e || (b[i] != '-' && b[i] != '/')) {
+            return parseNumber(b, s, e);
+        }
+        byte sep = b[i++];
+        int j = i;
+        int f1 = 0;
+        for (; i < e && i - j < 2 && isDigit(b[i]); i++) {
+            f1 = f1 * 10 + (b[i] - '0');
+        }
+        if (i == j || i == e || b[i] != sep) {
+            throw invalidDate(b, s, e, "Invalid date");
+        }
+        j = ++i;
+        int f2 = 0;
+        for (; i < e && i - j < 4 && isDigit(b[i]); i++) {
+            f2 = f2 * 10 + (b[i] - '0');
+        }
+        if (i == j) {
+            throw invalidDate(b, s, e, "Invalid date");
+        }
+
+        int year = (len0 == 4) ? f0 : f2;
+        int month = (len0 == 4) ? f1 : f0;
+        int day = (len0 == 4) ? f2 : f1;
+        if (((len0 == 4) ? len0 : i - j) < 4) {
+            throw invalidDate(b, s, e, "Two-digit year in date");
+        }
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw invalidDate(b, s, e, "Invalid date");
+        }
+        if (year < 1900) {
+            throw invalidDate(b, s, e, "Date before 1900");
+        }
+
+        double secs = 0;
+        if (i < e && (b[i] == 'T' || b[i] == ' ')) {
+            i++;
+            for (int k = 0; k < 3 && i + 2 <= e && isDigit(b[i]) && isDigit(b[i + 1]); k++) {
+                secs += ((b[i] - '0') * 10 + (b[i + 1] - '0')) * ((k == 0) ? 3600 : (k == 1) ? 60 : 1);
+                i += 2;
+                if (k < 2 && i < e && b[i] == ':') {
+                    i++;
+                } else {
+                    if (k == 2 && i < e && b[i] == '.') {
+                        j = i + 1;
+                        while (j < e && isDigit(b[j])) {
+                            j++;
+                        }
+                        secs += parseNumber(b, i, j);
+                        i = j;
+                    }
+                    break;
+                }
+            }
+        }
+        if (i != e) {
+            throw invalidDate(b, s, e, "Invalid date");
+        }
+        return daysFromCivil(year, month, day) - EXCEL_EPOCH + secs / 86400;
+    }
+
+    private static IllegalArgumentException invalidDate(byte[] b, int s, int e, String reason) {
+        return new IllegalArgumentException(String.format("%s \"%s\"", reason, new String(b, s, e - s, StandardCharsets.UTF_8)));
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date of the proleptic
+     * Gregorian calendar.
+     */
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= (m <= 2) ? 1 : 0;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (m + ((m > 2) ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
@@ -0,0 +1,88 @@
+package io;
+
+import java.util.List;
+
+import data.Vector;
+
+/**
+ * A reader that returns the content of a database file as list of columns.
+ *
+ * @author Eric
+ */
+public interface DataReader {
+
+    /**
+     * Returns the reader for the given database file: {@link CsvReader} for text files,
+     * {@link ExcelReader} otherwise.
+     *
+     * @param filename name of the database file.
+     * @param schema   the columns to read.
+     * @return the reader.
+     */
+    static DataReader create(String filename, ReadSchema schema) {
+        if (CsvReader.accepts(filename)) {
+            return new CsvReader(filename, schema);
+        }
+        return new ExcelReader(filename, schema);
+    }
+
+    /**
+     * Returns the data as list of columns.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @return the data.
+     */
+    List<Vector> getData();
+
+    /**
+     * Returns the data after the given rows.  This is used to load only the rows
+     * appended since the last load.
+     * <p>
+     * The first data rows must equal the given ones cell for cell, otherwise the
+     * database was not only appended to, and null is returned.  The rows are still read
+     * to compare them, but not collected.  In the case of an error, null is returned. In
+     * this case, call {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @param loaded the columns of the data loaded before, or null for none.
+     * @return the data after the given rows.
+     */
+    List<Vector> getData(List<Vector> loaded);
+
+    /**
+     * Returns the data, reading only the rows appended since an earlier load if the
+     * database was only appended to, see {@link #getData(List)}, and all rows otherwise.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @param snapshot the data of the earlier load, or null.  If the database was only
+     *                 appended to, its columns are replaced by the longer ones, and it is
+     *                 returned.
+     * @return the data.
+     */
+    default List<Vector> update(List<Vector> snapshot) {
+        if (snapshot != null && snapshot.get(0).size() > 0) {
+            List<Vector> tail = getData(snapshot);
+            if (tail != null) {
+                for (int i = 0; i < snapshot.size(); i++) {
+                    snapshot.set(i, snapshot.get(i).append(tail.get(i)));
+                }
+                return snapshot;
+            }
+        }
+        return getData();
+    }
+
+    /**
+     * Returns the error message during parsing. If no errors occur, an empty
+     * string is returned.
+     *
+     * @return the error message.
+     */
+    String getErrMsg();
+}
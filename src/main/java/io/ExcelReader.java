@@ -6,23 +6,38 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import data.ColumnBuilder;
 import data.Vector;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.ss.usermodel.*;
 
 /**
- * A simple Excel file reader. It takes the first sheet in the given workbook,
- * reads all the data, and returns the result as list of columns.
+ * A simple Excel file reader. It takes the first sheet in the given workbook, or
+ * the sheet with the given index, reads all the data, and returns the result as
+ * list of columns.
  * <p>
  * The data must be stored in consecutive rows. All cells must have either date
  * or number data.
  * </p>
+ * <p>
+ * A {@link ReadSchema} selects which columns are read and in which order.  By
+ * default the first {@code numField} consecutive columns are read.
+ * </p>
+ * <p>
+ * By default .xlsx and .xls files are read in streaming mode, which parses the
+ * sheet XML or the BIFF records directly instead of building the whole workbook
+ * in memory.
+ * </p>
  *
  * @author Eric
  */
-public class ExcelReader {
+public class ExcelReader implements DataReader {
 
-    private final int numField;
+    private final String filename;
+    private final int sheetIndex;
+    private final ReadSchema schema;
+    private final boolean streaming;
     private Sheet sheet;
     private String msg;
 
@@ -33,14 +48,64 @@ public class ExcelReader {
      * @param numField number of cells per row to read
      */
     public ExcelReader(String filename, int numField) {
-        this.numField = numField;
+        this(filename, ReadSchema.consecutive(numField), true);
+    }
+
+    /**
+     * Create a simple Excel file reader.
+     *
+     * @param filename  name of the excel workbook
+     * @param numField  number of cells per row to read
+     * @param streaming true to read .xlsx and .xls files in streaming mode.
+     */
+    public ExcelReader(String filename, int numField, boolean streaming) {
+        this(filename, ReadSchema.consecutive(numField), streaming);
+    }
+
+    /**
+     * Create a simple Excel file reader.
+     *
+     * @param filename name of the excel workbook
+     * @param schema   the columns to read
+     */
+    public ExcelReader(String filename, ReadSchema schema) {
+        this(filename, schema, true);
+    }
+
+    /**
+     * Create a simple Excel file reader.
+     *
+     * @param filename  name of the excel workbook
+     * @param schema    the columns to read
+     * @param streaming true to read .xlsx and .xls files in streaming mode.
+     */
+    public ExcelReader(String filename, ReadSchema schema, boolean streaming) {
+        this(filename, 0, schema, streaming);
+    }
+
+    /**
+     * Create a simple Excel file reader.
+     *
+     * @param filename   name of the excel workbook
+     * @param sheetIndex index of the sheet to read
+     * @param schema     the columns to read
+     * @param streaming  true to read .xlsx and .xls files in streaming mode.
+     */
+    public ExcelReader(String filename, int sheetIndex, ReadSchema schema, boolean streaming) {
+        this.filename = filename;
+        this.sheetIndex = sheetIndex;
+        this.schema = schema;
+        this.streaming = streaming && (filename.endsWith(".xlsx") || filename.endsWith(".xls"));
         sheet = null;
         msg = "";
+        if (this.streaming) {
+            return;
+        }
         try {
             InputStream inp = new FileInputStream(filename);
             Workbook wb = WorkbookFactory.create(inp);
-            sheet = wb.getSheetAt(0);
-        } catch (IOException | InvalidFormatException e) {
+            sheet = wb.getSheetAt(sheetIndex);
+        } catch (IOException | InvalidFormatException | IllegalArgumentException e) {
             msg = e.getMessage();
         }
     }
@@ -54,27 +119,71 @@ public class ExcelReader {
      *
      * @return the excel file data.
      */
+    @Override
     public List<Vector> getData() {
+        return getData(null);
+    }
+
+    /**
+     * Returns the excel data after the given rows.  This is used to load only the rows
+     * appended since the last load.
+     * <p>
+     * The first data rows must equal the given ones cell for cell, otherwise the
+     * database was not only appended to, and null is returned.  In the case of an error,
+     * null is returned. In this case, call {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @param loaded the columns of the data loaded before, or null for none.
+     * @return the excel file data after the given rows.
+     */
+    @Override
+    public List<Vector> getData(List<Vector> loaded) {
+        if (streaming) {
+            if (filename.endsWith(".xlsx")) {
+                XSSFStreamReader reader = new XSSFStreamReader(filename, sheetIndex, schema, loaded);
+                List<Vector> ans = reader.getData();
+                msg = reader.getErrMsg();
+                return ans;
+            }
+            HSSFStreamReader reader = new HSSFStreamReader(filename, sheetIndex, schema, loaded);
+            List<Vector> ans = reader.getData();
+            msg = reader.getErrMsg();
+            return ans;
+        }
         if (sheet == null) {
             return null;
         }
 
+        int numField = schema.size();
+        int dataStart = schema.hasHeader() ? 1 : 0;
+        int[] src = schema.resolve(dataStart > 0 ? readHeader() : null);
+        msg = schema.check(src);
+        if (!msg.isEmpty()) {
+            return null;
+        }
+        int firstRow = dataStart + ((loaded == null) ? 0 : loaded.get(0).size());
+        for (int i = dataStart; i < firstRow; i++) {
+            if (!checkRow(i, src, loaded, i - dataStart)) {
+                return null;
+            }
+        }
+
         int size = sheet.getLastRowNum() + 1;
-        List<List<Double>> cols = new ArrayList<>(numField);
+        List<ColumnBuilder> cols = new ArrayList<>(numField);
         for (int i = 0; i < numField; i++) {
-            cols.add(new ArrayList<Double>(size));
+            cols.add(new ColumnBuilder(Math.max(size - firstRow, 0)));
         }
-        for (int i = 0; i < size; i++) {
+        for (int i = firstRow; i < size; i++) {
             Row r = sheet.getRow(i);
             if (r == null) {
                 msg = String.format("Error: cannot read row %d", i + 1);
                 return null;
             }
             for (int j = 0; j < numField; j++) {
-                Cell c = r.getCell(j);
+                Cell c = r.getCell(src[j]);
                 if (c == null
                         || (c.getCellType() != Cell.CELL_TYPE_NUMERIC && c.getCellType() != Cell.CELL_TYPE_FORMULA)) {
-                    msg = String.format("Error: cannot read row %d cell %d", i, j);
+                    msg = String.format("Error: cannot read row %d cell %d", i, src[j]);
                     if (j == 0) {
                         return parse(cols);
                     }
@@ -84,7 +193,7 @@ public class ExcelReader {
                 try {
                     cols.get(j).add(c.getNumericCellValue());
                 } catch (Exception ex) {
-                    msg = String.format("Error: cannot read row %d cell %d\nMessage: %s", i, j, ex.getMessage());
+                    msg = String.format("Error: cannot read row %d cell %d\nMessage: %s", i, src[j], ex.getMessage());
                     return null;
                 }
             }
@@ -92,9 +201,80 @@ public class ExcelReader {
         return parse(cols);
     }
 
-    private List<Vector> parse(List<List<Double>> cols) {
+    /**
+     * Returns the names of all sheets in the workbook, in workbook order.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @return the sheet names.
+     */
+    public List<String> getSheetNames() {
+        if (!streaming) {
+            if (sheet == null) {
+                return null;
+            }
+            Workbook wb = sheet.getWorkbook();
+            List<String> ans = new ArrayList<>(wb.getNumberOfSheets());
+            for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+                ans.add(wb.getSheetName(i));
+            }
+            return ans;
+        }
+        try {
+            if (filename.endsWith(".xlsx")) {
+                return XSSFStreamReader.sheetNames(filename);
+            }
+            return HSSFStreamReader.sheetNames(filename);
+        } catch (IOException | OpenXML4JException e) {
+            msg = e.getMessage();
+            return null;
+        }
+    }
+
+    private List<String> readHeader() {
+        List<String> ans = new ArrayList<>();
+        Row r = sheet.getRow(0);
+        if (r != null) {
+            for (int j = 0; j < r.getLastCellNum(); j++) {
+                Cell c = r.getCell(j);
+                ans.add((c != null && c.getCellType() == Cell.CELL_TYPE_STRING) ? c.getStringCellValue() : null);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Returns true if the cells of row i equal row k of the loaded data.
+     */
+    private boolean checkRow(int i, int[] src, List<Vector> loaded, int k) {
+        Row r = sheet.getRow(i);
+        if (r == null) {
+            msg = String.format("Error: cannot read row %d", i + 1);
+            return false;
+        }
+        for (int j = 0; j < src.length; j++) {
+            Cell c = r.getCell(src[j]);
+            boolean same;
+            try {
+                same = c != null
+                        && (c.getCellType() == Cell.CELL_TYPE_NUMERIC || c.getCellType() == Cell.CELL_TYPE_FORMULA)
+                        && c.getNumericCellValue() == loaded.get(j).get(k);
+            } catch (Exception ex) {
+                same = false;
+            }
+            if (!same) {
+                msg = String.format("Error: row %d does not match the loaded data", i + 1);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Vector> parse(List<ColumnBuilder> cols) {
         List<Vector> ans = new ArrayList<>(cols.size());
-        for (List<Double> col : cols) {
+        for (ColumnBuilder col : cols) {
             ans.add(new Vector(col));
         }
         return ans;
@@ -106,6 +286,7 @@ public class ExcelReader {
      *
      * @return the error message.
      */
+    @Override
     public String getErrMsg() {
         return msg;
     }
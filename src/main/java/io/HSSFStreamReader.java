@@ -0,0 +1,251 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import data.Vector;
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * An event-based .xls reader. It listens to the BIFF records of one sheet
+ * and pushes the numeric cells into a {@link RowCollector}, so memory is bounded
+ * by the output columns rather than by the HSSF object model.
+ * <p>
+ * RK and MulRK records are converted to {@link NumberRecord}s by the event
+ * factory, so only number and formula records carry values.  Label records are
+ * only looked at in the header row.
+ * </p>
+ *
+ * @author Eric
+ */
+class HSSFStreamReader {
+
+    private static final String FORMULA_ERR = "Cannot get a numeric value from a non-numeric formula cell";
+
+    private final String filename;
+    private final int sheetIndex;
+    private final boolean header;
+    private final RowCollector collector;
+    private String msg;
+
+    /**
+     * Create a new HSSFStreamReader instance.
+     *
+     * @param filename   name of the .xls workbook.
+     * @param sheetIndex index of the sheet to read.
+     * @param schema     the columns to read.
+     * @param loaded     the columns of the data rows loaded before, which are compared
+     *                   rather than read, or null for none.
+     */
+    HSSFStreamReader(String filename, int sheetIndex, ReadSchema schema, List<Vector> loaded) {
+        this.filename = filename;
+        this.sheetIndex = sheetIndex;
+        this.header = schema.hasHeader();
+        this.collector = new RowCollector(schema, loaded);
+        msg = "";
+    }
+
+    /**
+     * Returns the data of the sheet as list of columns, starting at the first
+     * row to read.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @return the excel file data.
+     */
+    List<Vector> getData() {
+        NPOIFSFileSystem fs = null;
+        try {
+            fs = new NPOIFSFileSystem(new File(filename), true);
+            HSSFRequest req = new HSSFRequest();
+            SheetListener listener = new SheetListener();
+            req.addListenerForAllRecords(listener);
+            new HSSFEventFactory().abortableProcessWorkbookEvents(req, fs.getRoot());
+            if (!listener.seenSheet) {
+                msg = String.format("Error: file %s has no sheet %d", filename, sheetIndex + 1);
+                return null;
+            }
+            listener.finishSheet();
+            List<Vector> ans = collector.finish();
+            msg = collector.getErrMsg();
+            return ans;
+        } catch (IOException | HSSFUserException | RuntimeException e) {
+            msg = e.getMessage();
+            return null;
+        } finally {
+            if (fs != null) {
+                try {
+                    fs.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the sheets in the given workbook, in workbook order.  Only
+     * the workbook globals are read.
+     *
+     * @param filename name of the .xls workbook.
+     * @return the sheet names.
+     * @throws IOException if the workbook cannot be read.
+     */
+    static List<String> sheetNames(String filename) throws IOException {
+        try (NPOIFSFileSystem fs = new NPOIFSFileSystem(new File(filename), true)) {
+            List<String> ans = new ArrayList<>();
+            HSSFRequest req = new HSSFRequest();
+            req.addListenerForAllRecords(new AbortableHSSFListener() {
+                @Override
+                public short abortableProcessRecord(Record record) {
+                    if (record instanceof BoundSheetRecord) {
+                        ans.add(((BoundSheetRecord) record).getSheetname());
+                    } else if (record instanceof BOFRecord
+                            && ((BOFRecord) record).getType() != BOFRecord.TYPE_WORKBOOK) {
+                        return 1;
+                    }
+                    return 0;
+                }
+            });
+            new HSSFEventFactory().abortableProcessWorkbookEvents(req, fs.getRoot());
+            return ans;
+        } catch (HSSFUserException | RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the error message during parsing. If no errors occur, an empty
+     * string is returned.
+     *
+     * @return the error message.
+     */
+    String getErrMsg() {
+        return msg;
+    }
+
+    /**
+     * Record listener for the worksheet to read.
+     */
+    private class SheetListener extends AbortableHSSFListener {
+        private final BitSet rows = new BitSet();
+        private SSTRecord sst;
+        private int depth = 0;
+        private int sheets = 0;
+        private int row = -1;
+        private boolean inSheet = false;
+        private boolean seenSheet = false;
+
+        @Override
+        public short abortableProcessRecord(Record record) {
+            switch (record.getSid()) {
+                case BOFRecord.sid:
+                    depth++;
+                    if (depth == 1 && ((BOFRecord) record).getType() != BOFRecord.TYPE_WORKBOOK) {
+                        if (seenSheet) {
+                            return 1;
+                        }
+                        if (sheets++ == sheetIndex) {
+                            seenSheet = true;
+                            inSheet = true;
+                        }
+                    }
+                    return 0;
+                case EOFRecord.sid:
+                    depth--;
+                    return (depth == 0 && inSheet) ? (short) 1 : 0;
+                case SSTRecord.sid:
+                    if (header) {
+                        sst = (SSTRecord) record;
+                    }
+                    return 0;
+                default:
+                    break;
+            }
+            if (!inSheet || depth != 1) {
+                return 0;
+            }
+
+            if (record instanceof RowRecord) {
+                rows.set(((RowRecord) record).getRowNumber());
+            } else if (record instanceof MulBlankRecord) {
+                return advance(((MulBlankRecord) record).getRow()) ? 0 : (short) 1;
+            } else if (record instanceof CellValueRecordInterface) {
+                CellValueRecordInterface cell = (CellValueRecordInterface) record;
+                if (!advance(cell.getRow())) {
+                    return 1;
+                }
+                if (record instanceof NumberRecord) {
+                    collector.number(cell.getColumn(), ((NumberRecord) record).getValue());
+                } else if (record instanceof FormulaRecord) {
+                    FormulaRecord f = (FormulaRecord) record;
+                    if (f.getCachedResultType() == Cell.CELL_TYPE_NUMERIC) {
+                        collector.number(cell.getColumn(), f.getValue());
+                    } else {
+                        collector.invalid(cell.getColumn(), FORMULA_ERR);
+                    }
+                } else if (collector.wantsText()) {
+                    if (record instanceof LabelSSTRecord && sst != null) {
+                        int idx = ((LabelSSTRecord) record).getSSTIndex();
+                        collector.text(cell.getColumn(), sst.getString(idx).getString());
+                    } else if (record instanceof LabelRecord) {
+                        collector.text(cell.getColumn(), ((LabelRecord) record).getValue());
+                    }
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Walks the rows left after the last cell, up to the last row record.
+         */
+        void finishSheet() {
+            int last = rows.length() - 1;
+            if (last > row) {
+                advance(last);
+            }
+        }
+
+        /**
+         * Moves the collector to the given row, walking over rows that only have a
+         * row record in between.
+         *
+         * @param r the row index.
+         * @return false if no more cells are needed.
+         */
+        private boolean advance(int r) {
+            while (row < r) {
+                int next = row + 1;
+                if (next < r && !rows.get(next)) {
+                    next = r;
+                }
+                row = next;
+                if (!collector.startRow(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes which source columns are read, and in which order they are returned.
+ * <p>
+ * Each field maps a source column to the next output {@link data.Vector} slot.  A
+ * column is given either by its letter ("A", "F", "AB"), or by its name in the header
+ * row.  If any column is given by name, the first row of the sheet is read as the
+ * header row and the data starts at the second row.  Columns that are not in the
+ * schema are skipped without being decoded.
+ * </p>
+ * <p>
+ * With a header row, every column is looked up by name first, so a name such as
+ * "LOW" or "VOL" reads the column of that header, and is only taken as a column
+ * letter if no header cell has that name.  Each source column can be read into one
+ * field only.
+ * </p>
+ * <p>
+ * Excel stores dates as serial numbers, so both field types are read the same way
+ * from a workbook.  Text sources use the type to decide how to parse a field.
+ * </p>
+ *
+ * @author Eric
+ */
+public class ReadSchema {
+
+    /**
+     * The type of a field.
+     */
+    public enum Type {
+        /**
+         * A date, stored as Excel serial number.
+         */
+        DATE,
+        /**
+         * A plain number.
+         */
+        NUMBER
+    }
+
+    private final List<String> columns;
+    private final List<Type> types;
+
+    /**
+     * Create a new empty ReadSchema.
+     */
+    public ReadSchema() {
+        columns = new ArrayList<>();
+        types = new ArrayList<>();
+    }
+
+    /**
+     * Returns the schema used by default: a date in column A followed by numbers in the
+     * next {@code numField - 1} columns.
+     *
+     * @param numField number of consecutive columns to read.
+     * @return the schema.
+     */
+    public static ReadSchema consecutive(int numField) {
+        ReadSchema ans = new ReadSchema();
+        for (int i = 0; i < numField; i++) {
+            ans.add(columnName(i), (i == 0) ? Type.DATE : Type.NUMBER);
+        }
+        return ans;
+    }
+
+    /**
+     * Parses a schema from a comma separated list of columns.  Each column may be
+     * followed by ":date" or ":number", numbers being the default.  For example,
+     * {@code "A:date, B, C, D, E, G"} or {@code "Date:date, Open, High, Low, Close, Volume"}.
+     *
+     * @param spec the schema specification.
+     * @return the schema.
+     * @throws IllegalArgumentException if the specification is not valid.
+     */
+    public static ReadSchema parse(String spec) {
+        ReadSchema ans = new ReadSchema();
+        for (String field : spec.split(",")) {
+            String[] parts = field.split(":");
+            String col = parts[0].trim();
+            if (col.isEmpty() || parts.length > 2) {
+                throw new IllegalArgumentException(String.format("Invalid schema field \"%s\"", field.trim()));
+            }
+            Type type = Type.NUMBER;
+            if (parts.length == 2) {
+                try {
+                    type = Type.valueOf(parts[1].trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(String.format("Invalid schema type \"%s\"", parts[1].trim()));
+                }
+            }
+            ans.add(col, type);
+        }
+        return ans;
+    }
+
+    /**
+     * Appends a date field.
+     *
+     * @param column the column letter or name.
+     * @return this schema.
+     */
+    public ReadSchema date(String column) {
+        return add(column, Type.DATE);
+    }
+
+    /**
+     * Appends a number field.
+     *
+     * @param column the column letter or name.
+     * @return this schema.
+     */
+    public ReadSchema number(String column) {
+        return add(column, Type.NUMBER);
+    }
+
+    /**
+     * Appends a field.
+     *
+     * @param column the column letter or name.
+     * @param type   the field type.
+     * @return this schema.
+     */
+    public ReadSchema add(String column, Type type) {
+        columns.add(column);
+        types.add(type);
+        return this;
+    }
+
+    /**
+     * Returns the number of fields.
+     *
+     * @return the number of fields.
+     */
+    public int size() {
+        return columns.size();
+    }
+
+    /**
+     * Returns the column letter or name of the given field.
+     *
+     * @param slot the field index.
+     * @return the column letter or name.
+     */
+    public String getColumn(int slot) {
+        return columns.get(slot);
+    }
+
+    /**
+     * Returns the type of the given field.
+     *
+     * @param slot the field index.
+     * @return the field type.
+     */
+    public Type getType(int slot) {
+        return types.get(slot);
+    }
+
+    /**
+     * Returns true if any column is given by name, so the first row is a header row.
+     *
+     * @return true if this schema needs a header row.
+     */
+    public boolean hasHeader() {
+        for (String col : columns) {
+            if (!isLetter(col)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the source column index of each field.
+     *
+     * @param header the header row cells by column index, or null if there is none.
+     * @return the source column index of each field, or -1 for names not found.
+     */
+    public int[] resolve(List<String> header) {
+        int[] ans = new int[columns.size()];
+        Arrays.fill(ans, -1);
+        for (int j = 0; j < ans.length; j++) {
+            String col = columns.get(j);
+            if (header != null) {
+                for (int i = 0; i < header.size(); i++) {
+                    String name = header.get(i);
+                    if (name != null && name.trim().equalsIgnoreCase(col.trim())) {
+                        ans[j] = i;
+                        break;
+                    }
+                }
+            }
+            if (ans[j] < 0 && isLetter(col)) {
+                ans[j] = columnIndex(col);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Checks the source columns of the fields, as returned by {@link #resolve(List)}.
+     *
+     * @param srcCols the source column index of each field.
+     * @return the error message if a column is not found or read into two fields, or
+     * an empty string.
+     */
+    String check(int[] srcCols) {
+        for (int j = 0; j < srcCols.length; j++) {
+            if (srcCols[j] < 0) {
+                return String.format("Error: cannot find column %s", columns.get(j));
+            }
+            for (int k = 0; k < j; k++) {
+                if (srcCols[k] == srcCols[j]) {
+                    return String.format("Error: %s and %s are both column %s",
+                            columns.get(k), columns.get(j), columnName(srcCols[j]));
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns, for each source column up to the last one used, the field it is read into,
+     * or -1 if it is not read.
+     *
+     * @param srcCols the source column index of each field, each read into one field,
+     *                see {@link #check(int[])}.
+     * @return the field index of each source column.
+     */
+    static int[] slots(int[] srcCols) {
+        int n = 0;
+        for (int c : srcCols) {
+            n = Math.max(n, c + 1);
+        }
+        int[] ans = new int[n];
+        Arrays.fill(ans, -1);
+        for (int j = 0; j < srcCols.length; j++) {
+            if (srcCols[j] >= 0) {
+                ans[srcCols[j]] = j;
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Returns true if the given column is a column letter rather than a name.
+     *
+     * @param col the column letter or name.
+     * @return true for column letters.
+     */
+    static boolean isLetter(String col) {
+        if (col.isEmpty() || col.length() > 3) {
+            return false;
+        }
+        for (int i = 0; i < col.length(); i++) {
+            char ch = col.charAt(i);
+            if (ch < 'A' || ch > 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts column letters such as "AB", or the column part of a cell reference such
+     * as "AB12", to a 0-based index.
+     *
+     * @param ref the column letters or cell reference.
+     * @return the column index.
+     */
+    static int columnIndex(String ref) {
+        int col = 0;
+        for (int i = 0; i < ref.length(); i++) {
+            char ch = ref.charAt(i);
+            if (ch < 'A' || ch > 'Z') {
+                break;
+            }
+            col = col * 26 + (ch - 'A' + 1);
+        }
+        return col - 1;
+    }
+
+    /**
+     * Converts a 0-based column index to column letters.
+     *
+     * @param col the column index.
+     * @return the column letters.
+     */
+    static String columnName(int col) {
+        StringBuilder b = new StringBuilder();
+        for (int c = col + 1; c > 0; c = (c - 1) / 26) {
+            b.append((char) ('A' + (c - 1) % 26));
+        }
+        return b.reverse().toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for (int j = 0; j < columns.size(); j++) {
+            if (j > 0) {
+                b.append(", ");
+            }
+            b.append(columns.get(j)).append(':').append(types.get(j).name().toLowerCase());
+        }
+        return b.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ReadSchema)) {
+            return false;
+        }
+        ReadSchema s = (ReadSchema) obj;
+        return columns.equals(s.columns) && types.equals(s.types);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
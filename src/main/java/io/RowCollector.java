@@ -0,0 +1,284 @@
+package io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import data.ColumnBuilder;
+import data.Vector;
+
+/**
+ * Collects the cell values pushed by the event-based readers and applies the same
+ * row rules as {@link ExcelReader#getData()}.
+ * <p>
+ * Cells must be pushed in row order. Numeric cells go straight into one
+ * {@link ColumnBuilder} per field of the {@link ReadSchema}, so no per-cell objects
+ * are kept around.  Cells of columns that are not in the schema are not wanted, and
+ * readers skip them without decoding.
+ * </p>
+ * <p>
+ * If the schema needs a header row, the first row is collected as text and used to
+ * resolve the column names.
+ * </p>
+ * <p>
+ * When only the data rows after those loaded earlier are wanted, the rows loaded are
+ * still decoded, and must equal the loaded data cell for cell, so an edit to any of
+ * them is noticed rather than kept out of date.
+ * </p>
+ *
+ * @author Eric
+ */
+class RowCollector {
+
+    private static final byte MISSING = 0;
+    private static final byte NUMBER = 1;
+    private static final byte INVALID = 2;
+
+    private final ReadSchema schema;
+    private final int numField;
+    private final int dataStart;
+    private final int firstRow;
+    private final List<Vector> loaded;
+    private final ColumnBuilder[] cols;
+    private int[] srcCols;
+    private int[] slots;
+    private final List<String> header;
+
+    private final byte[] rowState;
+    private final double[] rowVals;
+    private final String[] rowErr;
+    private int row;
+
+    private boolean stopped;
+    private boolean failed;
+    private String msg;
+
+    /**
+     * Create a new RowCollector instance.
+     *
+     * @param schema the columns to read.
+     */
+    RowCollector(ReadSchema schema) {
+        this(schema, null);
+    }
+
+    /**
+     * Create a new RowCollector instance that only collects the data rows after the
+     * given ones, which must be the first data rows.
+     *
+     * @param schema the columns to read.
+     * @param loaded the columns of the data rows loaded earlier, or null for none.
+     */
+    RowCollector(ReadSchema schema, List<Vector> loaded) {
+        this.schema = schema;
+        this.numField = schema.size();
+        this.dataStart = schema.hasHeader() ? 1 : 0;
+        this.firstRow = dataStart + ((loaded == null) ? 0 : loaded.get(0).size());
+        this.loaded = loaded;
+        cols = new ColumnBuilder[numField];
+        for (int j = 0; j < numField; j++) {
+            cols[j] = new ColumnBuilder();
+        }
+        srcCols = schema.resolve(null);
+        slots = ReadSchema.slots(srcCols);
+        header = new ArrayList<>();
+        rowState = new byte[numField];
+        rowVals = new double[numField];
+        rowErr = new String[numField];
+        row = -1;
+        stopped = false;
+        // without a header row, the columns are known now.
+        msg = (dataStart == 0) ? schema.check(srcCols) : "";
+        failed = !msg.isEmpty();
+    }
+
+    /**
+     * Returns true if the given cell of the current row is read as a number.
+     *
+     * @param col the column index.
+     * @return true if the given cell is read.
+     */
+    boolean wants(int col) {
+        return row >= dataStart && col >= 0 && col < slots.length && slots[col] >= 0;
+    }
+
+    /**
+     * Returns the type of the field the given column is read into.  Only valid if
+     * {@link #wants(int)} returns true.
+     *
+     * @param col the column index.
+     * @return the field type.
+     */
+    ReadSchema.Type typeOf(int col) {
+        return schema.getType(slots[col]);
+    }
+
+    /**
+     * Returns true if the cells of the current row are read as text, which is the case
+     * for the header row.
+     *
+     * @return true if the current row is the header row.
+     */
+    boolean wantsText() {
+        return row >= 0 && row < dataStart;
+    }
+
+    /**
+     * Returns true if no more cells are needed, either because the data ended or because
+     * an error occurred.
+     *
+     * @return true if reading is done.
+     */
+    boolean isDone() {
+        return stopped || failed;
+    }
+
+    /**
+     * Starts the given row.  The previous row is finished first, and rows skipped
+     * in between are treated as missing.
+     *
+     * @param r the row index.
+     * @return false if no more cells are needed.
+     */
+    boolean startRow(int r) {
+        if (isDone()) {
+            return false;
+        }
+        if (row >= 0) {
+            finishRow();
+            if (isDone()) {
+                return false;
+            }
+        }
+        int expected = row + 1;
+        if (r > expected) {
+            msg = String.format("Error: cannot read row %d", expected + 1);
+            failed = true;
+            return false;
+        }
+        row = r;
+        Arrays.fill(rowState, MISSING);
+        return true;
+    }
+
+    /**
+     * Sets a numeric cell of the current row.
+     *
+     * @param col the column index.
+     * @param val the cell value.
+     */
+    void number(int col, double val) {
+        if (wants(col)) {
+            rowState[slots[col]] = NUMBER;
+            rowVals[slots[col]] = val;
+        }
+    }
+
+    /**
+     * Marks a cell of the current row as unreadable, for example a formula with a
+     * text result.
+     *
+     * @param col the column index.
+     * @param err the error message.
+     */
+    void invalid(int col, String err) {
+        if (wants(col)) {
+            rowState[slots[col]] = INVALID;
+            rowErr[slots[col]] = err;
+        }
+    }
+
+    /**
+     * Sets a text cell of the header row.
+     *
+     * @param col  the column index.
+     * @param text the cell text.
+     */
+    void text(int col, String text) {
+        if (wantsText() && col >= 0) {
+            while (header.size() <= col) {
+                header.add(null);
+            }
+            header.set(col, text);
+        }
+    }
+
+    /**
+     * Finishes the last row and returns the collected columns.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @return the collected columns.
+     */
+    List<Vector> finish() {
+        if (!isDone()) {
+            if (row < Math.max(firstRow - 1, 0)) {
+                msg = String.format("Error: cannot read row %d", Math.max(row + 2, firstRow));
+                failed = true;
+            } else {
+                finishRow();
+            }
+        }
+        if (failed) {
+            return null;
+        }
+        List<Vector> ans = new ArrayList<>(numField);
+        for (ColumnBuilder col : cols) {
+            ans.add(new Vector(col));
+        }
+        return ans;
+    }
+
+    /**
+     * Returns the error message during parsing. If no errors occur, an empty
+     * string is returned.
+     *
+     * @return the error message.
+     */
+    String getErrMsg() {
+        return msg;
+    }
+
+    private void finishRow() {
+        if (row < dataStart) {
+            srcCols = schema.resolve(header);
+            msg = schema.check(srcCols);
+            if (!msg.isEmpty()) {
+                failed = true;
+                return;
+            }
+            slots = ReadSchema.slots(srcCols);
+            return;
+        }
+        if (row < firstRow) {
+            for (int j = 0; j < numField; j++) {
+                if (rowState[j] != NUMBER || rowVals[j] != loaded.get(j).get(row - dataStart)) {
+                    msg = String.format("Error: row %d does not match the loaded data", row + 1);
+                    failed = true;
+                    return;
+                }
+            }
+            return;
+        }
+        for (int j = 0; j < numField; j++) {
+            if (rowState[j] == MISSING) {
+                msg = String.format("Error: cannot read row %d cell %d", row, srcCols[j]);
+                if (j == 0) {
+                    stopped = true;
+                } else {
+                    failed = true;
+                }
+                return;
+            } else if (rowState[j] == INVALID) {
+                msg = String.format("Error: cannot read row %d cell %d\nMessage: %s", row, srcCols[j], rowErr[j]);
+                failed = true;
+                return;
+            }
+        }
+        for (int j = 0; j < numField; j++) {
+            cols[j].add(rowVals[j]);
+        }
+    }
+}
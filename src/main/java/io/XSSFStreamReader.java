@@ -0,0 +1,236 @@
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import data.Vector;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * An event-based .xlsx reader. It parses the XML of one sheet with SAX and
+ * pushes the numeric cells into a {@link RowCollector}, so no {@code Sheet},
+ * {@code Row} or {@code Cell} objects are ever built.
+ * <p>
+ * The shared strings table is only loaded when the {@link ReadSchema} needs a
+ * header row, since text cells are otherwise only ever treated as the end of the
+ * data.
+ * </p>
+ *
+ * @author Eric
+ */
+class XSSFStreamReader {
+
+    private static final String FORMULA_ERR = "Cannot get a numeric value from a non-numeric formula cell";
+
+    private final String filename;
+    private final int sheetIndex;
+    private final boolean header;
+    private final RowCollector collector;
+    private ReadOnlySharedStringsTable strings;
+    private String msg;
+
+    /**
+     * Create a new XSSFStreamReader instance.
+     *
+     * @param filename   name of the .xlsx workbook.
+     * @param sheetIndex index of the sheet to read.
+     * @param schema     the columns to read.
+     * @param loaded     the columns of the data rows loaded before, which are compared
+     *                   rather than read, or null for none.
+     */
+    XSSFStreamReader(String filename, int sheetIndex, ReadSchema schema, List<Vector> loaded) {
+        this.filename = filename;
+        this.sheetIndex = sheetIndex;
+        this.header = schema.hasHeader();
+        this.collector = new RowCollector(schema, loaded);
+        msg = "";
+    }
+
+    /**
+     * Returns the data of the sheet as list of columns, starting at the first
+     * row to read.
+     * <p>
+     * In the case of an error, null is returned. In this case, call
+     * {@link #getErrMsg()} to see the error message.
+     * </p>
+     *
+     * @return the excel file data.
+     */
+    List<Vector> getData() {
+        OPCPackage pkg = null;
+        try {
+            pkg = OPCPackage.open(filename, PackageAccess.READ);
+            if (header) {
+                strings = new ReadOnlySharedStringsTable(pkg);
+            }
+            XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+            for (int i = 0; i < sheetIndex && it.hasNext(); i++) {
+                it.next().close();
+            }
+            if (!it.hasNext()) {
+                msg = String.format("Error: file %s has no sheet %d", filename, sheetIndex + 1);
+                return null;
+            }
+            try (InputStream inp = it.next()) {
+                XMLReader parser = SAXHelper.newXMLReader();
+                parser.setContentHandler(new SheetHandler());
+                parser.parse(new InputSource(inp));
+            } catch (StopParsing ignored) {
+                // the collector has all the data it needs.
+            }
+            List<Vector> ans = collector.finish();
+            msg = collector.getErrMsg();
+            return ans;
+        } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException e) {
+            msg = e.getMessage();
+            return null;
+        } finally {
+            if (pkg != null) {
+                pkg.revert();
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the sheets in the given workbook, in workbook order.
+     *
+     * @param filename name of the .xlsx workbook.
+     * @return the sheet names.
+     * @throws IOException        if the workbook cannot be read.
+     * @throws OpenXML4JException if the workbook is not a valid .xlsx file.
+     */
+    static List<String> sheetNames(String filename) throws IOException, OpenXML4JException {
+        OPCPackage pkg = OPCPackage.open(filename, PackageAccess.READ);
+        try {
+            XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+            List<String> ans = new ArrayList<>();
+            while (it.hasNext()) {
+                it.next().close();
+                ans.add(it.getSheetName());
+            }
+            return ans;
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * Returns the error message during parsing. If no errors occur, an empty
+     * string is returned.
+     *
+     * @return the error message.
+     */
+    String getErrMsg() {
+        return msg;
+    }
+
+    /**
+     * Thrown to abort parsing once the collector is done.
+     */
+    private static class StopParsing extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        StopParsing() {
+            super("stop");
+        }
+    }
+
+    /**
+     * SAX handler for the sheet XML.
+     */
+    private class SheetHandler extends DefaultHandler {
+        private final StringBuilder text = new StringBuilder();
+        private int row = -1;
+        private int col = -1;
+        private String type;
+        private boolean wanted;
+        private boolean wantedText;
+        private boolean formula;
+        private boolean hasValue;
+        private boolean inValue;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs)
+                throws SAXException {
+            switch (localName) {
+                case "row":
+                    String r = attrs.getValue("r");
+                    row = (r == null) ? row + 1 : Integer.parseInt(r) - 1;
+                    col = -1;
+                    if (!collector.startRow(row)) {
+                        throw new StopParsing();
+                    }
+                    break;
+                case "c":
+                    String ref = attrs.getValue("r");
+                    col = (ref == null) ? col + 1 : ReadSchema.columnIndex(ref);
+                    type = attrs.getValue("t");
+                    wanted = collector.wants(col);
+                    wantedText = collector.wantsText();
+                    text.setLength(0);
+                    formula = false;
+                    hasValue = false;
+                    break;
+                case "f":
+                    formula = true;
+                    break;
+                case "v":
+                case "t":
+                    inValue = wanted || wantedText;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if ("v".equals(localName) || "t".equals(localName)) {
+                hasValue |= inValue;
+                inValue = false;
+            } else if ("c".equals(localName) && wantedText && hasValue) {
+                String val = text.toString();
+                if ("s".equals(type)) {
+                    try {
+                        val = strings.getEntryAt(Integer.parseInt(val));
+                    } catch (RuntimeException e) {
+                        val = null;
+                    }
+                }
+                collector.text(col, val);
+            } else if ("c".equals(localName) && wanted && (hasValue || formula)) {
+                if (type == null || "n".equals(type)) {
+                    // a formula without a cached result reads as 0, as in the workbook model.
+                    try {
+                        collector.number(col, hasValue ? Double.parseDouble(text.toString()) : 0);
+                    } catch (NumberFormatException e) {
+                        collector.invalid(col, e.getMessage());
+                    }
+                } else if (formula) {
+                    collector.invalid(col, FORMULA_ERR);
+                }
+            }
+        }
+    }
+}
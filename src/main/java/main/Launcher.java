@@ -1,9 +1,12 @@
 package main;
 
+import data.DerivedCache;
 import data.PostProcess;
+import data.Storage;
 import gui.LoggerUI;
 import gui.ProgressForm;
 import io.ExcelWriter;
+import io.ReadSchema;
 import javafx.application.Application;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
@@ -12,8 +15,11 @@ import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import util.CategorizeMode;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -22,6 +28,11 @@ import java.util.Properties;
 public class Launcher extends Application {
 
     private LoggerUI log;
+    private ReadSchema schema;
+    private String formulaFile;
+    private List<String> outputs;
+    private DerivedCache cache;
+    private CategorizeMode categorizeMode;
 
     @Override
     public void init() {
@@ -41,6 +52,12 @@ public class Launcher extends Application {
     public void start(Stage primaryStage) {
         Properties prop = loadProperties();
         String dbFile = getDBName(prop);
+        schema = getSchema(prop);
+        formulaFile = prop.getProperty("formulas");
+        outputs = getOutputs(prop);
+        setStorage(prop);
+        cache = getCache(prop);
+        categorizeMode = getCategorizeMode(prop);
 
         primaryStage.setTitle("QExcel");
         primaryStage.setScene(new Scene(makeGridPane(primaryStage, dbFile), 400, 250));
@@ -104,6 +121,86 @@ public class Launcher extends Application {
         }
     }
 
+    private ReadSchema getSchema(Properties prop) {
+        String key = "schema";
+        if (prop.containsKey(key)) {
+            try {
+                return ReadSchema.parse(prop.getProperty(key));
+            } catch (IllegalArgumentException e) {
+                log.logMsg("Cannot read schema: " + e.getMessage());
+            }
+        }
+        return ReadSchema.consecutive(6);
+    }
+
+    private List<String> getOutputs(Properties prop) {
+        String key = "outputs";
+        if (!prop.containsKey(key)) {
+            return null;
+        }
+        List<String> ans = new ArrayList<>();
+        for (String name : prop.getProperty(key).split(",")) {
+            if (!name.trim().isEmpty()) {
+                ans.add(name.trim());
+            }
+        }
+        return ans.isEmpty() ? null : ans;
+    }
+
+    private void setStorage(Properties prop) {
+        String key = "offheap.threshold";
+        if (prop.containsKey(key)) {
+            try {
+                Storage.setThreshold(Integer.parseInt(prop.getProperty(key).trim()));
+            } catch (NumberFormatException e) {
+                log.logMsg("Cannot read off-heap threshold: " + e.getMessage());
+            }
+        }
+        key = "offheap.dir";
+        if (prop.containsKey(key)) {
+            Storage.setDirectory(new File(prop.getProperty(key)));
+        }
+    }
+
+    private DerivedCache getCache(Properties prop) {
+        long maxBytes = 256L << 20;
+        String key = "cache.memory";
+        if (prop.containsKey(key)) {
+            try {
+                maxBytes = Long.parseLong(prop.getProperty(key).trim());
+            } catch (NumberFormatException e) {
+                log.logMsg("Cannot read cache memory: " + e.getMessage());
+            }
+        }
+        // the columns are only kept on disk if asked for, as nothing removes them there.
+        key = "cache.dir";
+        File dir = prop.containsKey(key) ? new File(prop.getProperty(key)) : null;
+        return new DerivedCache(maxBytes, dir);
+    }
+
+    private CategorizeMode getCategorizeMode(Properties prop) {
+        String key = "categorize.window";
+        if (prop.containsKey(key)) {
+            try {
+                int window = Integer.parseInt(prop.getProperty(key).trim());
+                if (window != 0) {
+                    // a window takes precedence over a rank error.
+                    return CategorizeMode.window(window);
+                }
+            } catch (IllegalArgumentException e) {
+                log.logMsg("Cannot read categorize window: " + e.getMessage());
+            }
+        }
+        key = "categorize.error";
+        if (prop.containsKey(key)) {
+            try {
+                return CategorizeMode.rankError(Double.parseDouble(prop.getProperty(key).trim()));
+            } catch (IllegalArgumentException e) {
+                log.logMsg("Cannot read categorize error: " + e.getMessage());
+            }
+        }
+        return CategorizeMode.EXACT;
+    }
 
     /**
      * Run the main routine.
@@ -122,13 +219,22 @@ public class Launcher extends Application {
             temp = "out.xls";
         }
         String output = temp;
-        LoadDBTask task = new LoadDBTask(dbFile);
+        LoadDBTask task = new LoadDBTask(dbFile, schema, formulaFile, outputs);
+        task.setCache(cache);
+        task.setCategorizeMode(categorizeMode);
         pForm.activateProgressBar(task);
         task.setOnSucceeded(event -> {
             pForm.getDialogStage().close();
+            if (task.getValue() == null) {
+                log.logMsg("Loading failed: " + task.getMessage());
+                return;
+            }
             ExcelWriter writer = new ExcelWriter(output);
-            writer.writeAll(PostProcess.toOutput(task.getValue()));
+            writer.writeAll(PostProcess.toOutput(task.getColumnNames(), task.getValue()));
             writer.close();
+            if (task.getDifferences() != null) {
+                log.logMsg(task.getDifferences());
+            }
             log.logMsg("Loading done.");
         });
 
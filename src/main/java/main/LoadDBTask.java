@@ -1,12 +1,21 @@
 package main;
 
-import data.Op;
+import data.ColumnGraph;
+import data.DerivedCache;
+import data.Formulas;
+import data.PostProcess;
 import data.Vector;
-import io.ExcelReader;
+import io.ColumnCache;
+import io.DataReader;
+import io.ReadSchema;
 import javafx.concurrent.Task;
+import util.CategorizeMode;
 import util.Util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A task that loads the database
@@ -14,137 +23,218 @@ import java.util.List;
 public class LoadDBTask extends Task<List<Vector>> {
 
     private final String dbFile;
+    private final ReadSchema schema;
+    private final String formulaFile;
+    private final List<String> outputs;
+    private volatile List<String> columnNames;
+    private volatile String differences;
+    // the error of the last readDatabase.
+    private String readErrMsg;
+    private DerivedCache derivedCache;
+    private CategorizeMode categorizeMode = CategorizeMode.EXACT;
 
     /**
-     * Create a new LoadDBTask instance.
+     * Create a new LoadDBTask instance that reads the first 6 columns of the database.
      *
      * @param dbFile the database file name.
      */
     public LoadDBTask(String dbFile) {
+        this(dbFile, ReadSchema.consecutive(6));
+    }
+
+    /**
+     * Create a new LoadDBTask instance.
+     *
+     * @param dbFile the database file name.
+     * @param schema the database columns to read.  They must be date, open, max, min,
+     *               close and volume, in this order.
+     */
+    public LoadDBTask(String dbFile, ReadSchema schema) {
+        this(dbFile, schema, null);
+    }
+
+    /**
+     * Create a new LoadDBTask instance that also computes the columns defined in a
+     * formula file, see {@link Formulas}, after AA.
+     *
+     * @param dbFile      the database file name.
+     * @param schema      the database columns to read.  They must be date, open, max,
+     *                    min, close and volume, in this order.
+     * @param formulaFile the formula file name, or null.  If it cannot be read, the load
+     *                    fails with its error.
+     */
+    public LoadDBTask(String dbFile, ReadSchema schema, String formulaFile) {
+        this(dbFile, schema, formulaFile, null);
+    }
+
+    /**
+     * Create a new LoadDBTask instance that only computes the given columns, and the
+     * columns they read.
+     *
+     * @param dbFile      the database file name.
+     * @param schema      the database columns to read.  They must be date, open, max,
+     *                    min, close and volume, in this order.
+     * @param formulaFile the formula file name, or null.
+     * @param outputs     the names of the columns to return, A to AA or those of the
+     *                    formula file, or null for all of them.
+     */
+    public LoadDBTask(String dbFile, ReadSchema schema, String formulaFile, List<String> outputs) {
         this.dbFile = dbFile;
+        this.schema = schema;
+        this.formulaFile = formulaFile;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Sets the cache of the derived columns, so those computed by an earlier task from
+     * the same data are not computed again.  Call before the task runs.
+     *
+     * @param cache the cache, or null for none.
+     */
+    public void setCache(DerivedCache cache) {
+        this.derivedCache = cache;
+    }
+
+    /**
+     * Sets how the columns K to O, and categ in formulas, are binned.  Call before the
+     * task runs.  With a rank error, the task also counts the rows of K to O binned
+     * differently than by the exact percentiles, see {@link #getDifferences()}.
+     *
+     * @param mode the mode, exact by default.
+     */
+    public void setCategorizeMode(CategorizeMode mode) {
+        this.categorizeMode = mode;
+    }
+
+    /**
+     * Returns the names of the columns of the result, once the task is done.
+     *
+     * @return the column names, or null if the task is not done.
+     */
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Returns the number of rows of K to O binned differently by the estimated
+     * percentiles than by the exact ones, as a message, once the task is done.
+     *
+     * @return the message, or null if the task is not done or the percentiles are not
+     * estimated.
+     */
+    public String getDifferences() {
+        return differences;
     }
 
 
     @Override
     protected List<Vector> call() throws Exception {
         updateMessage("Loading Database...");
-        ExcelReader reader = new ExcelReader(dbFile, 6);
-        List<Vector> data = reader.getData();
-        updateProgress(10, 100);
+        ColumnCache cache = new ColumnCache(dbFile, schema);
+        List<Vector> data = cache.load();
+        String errMsg = null;
         if (data == null) {
-            updateMessage(reader.getErrMsg());
-        } else {
+            data = readDatabase(cache.loadSnapshot());
+            if (data != null) {
+                cache.save(data);
+            } else {
+                errMsg = readErrMsg;
+            }
+        }
+        updateProgress(10, 100);
+        ColumnGraph graph = null;
+        if (data != null) {
             updateMessage("Computing Fields...");
-            postProcess(data);
+            graph = PostProcess.graph(categorizeMode);
+            if (formulaFile != null) {
+                Formulas formulas = new Formulas();
+                formulas.setCategorizeMode(categorizeMode);
+                if (formulas.read(formulaFile, graph) == null) {
+                    // the columns of the formulas cannot be left out silently.
+                    errMsg = formulas.getErrMsg();
+                    data = null;
+                }
+            }
+        }
+        if (data != null) {
+            graph.setCache(derivedCache);
+            List<String> names = outputs;
+            if (names == null) {
+                names = new ArrayList<>(PostProcess.columnNames().subList(0, 6));
+                names.addAll(graph.getStages());
+            }
+            try {
+                List<Vector> input = data;
+                data = postProcess(graph, input, names);
+                columnNames = names;
+                if (categorizeMode.getRankError() > 0) {
+                    updateMessage("Comparing with exact percentiles...");
+                    differences = countDifferences(graph, input);
+                }
+            } catch (IllegalArgumentException e) {
+                errMsg = e.getMessage();
+                data = null;
+            }
         }
-        updateMessage("Done.");
+        updateMessage((errMsg == null) ? "Done." : errMsg);
         updateProgress(100, 100);
         return data;
     }
 
-    private void postProcess(List<Vector> data) {
-        Vector b, c, d, e, f, g, h, i, j, k, l, m, n, o, p;
-        Vector q, r, s, t, u, v, w, x, y, z, aa;
-        Vector q0, q1, q2, q3, k0, l0, m0, n0, o0, ed1, cd1, dd1;
-        Vector r0, r1, r2, r3, temp0, temp1, temp2, temp3, ca1, da1, ca2, da2;
-        b = data.get(1);  // open
-        c = data.get(2);  // max
-        d = data.get(3);  // min
-        e = data.get(4);  // close
-        f = data.get(5);  // volume
-
-        ed1 = e.shift(-1);   // close[-1]
-        cd1 = c.shift(-1);   // max[-1]
-        ca1 = c.shift(1);  // max[+1]
-        ca2 = c.shift(2);  // max[+2]
-        dd1 = d.shift(-1);   // min[-1]
-        da1 = d.shift(1);  // min[+1]
-        da2 = d.shift(2);  // min[+2]
-
-        updateMessage("Column G...");
-        updateProgress(15, 100);
-        g = e.sub(b);                               // close - open
-
-        updateMessage("Column H...");
-        updateProgress(20, 100);
-        h = b.max(e).scaleAddi(-1, c);              // max - max(open, close)
-        i = b.min(e).subi(d);                       // min(open, close) - min
-        j = c.sub(d);                               // max - min
-        k0 = b.sub(ed1);                            // open - close[-1]
-        l0 = g;
-        m0 = e.sub(ed1);                            // close - close[-1]
-        n0 = f.sub(f.shift(-1));                    // volume - volume[-1]
-        o0 = b.shift(1).sub(e);                     // open[+1] - close
-        k = Util.categorize(k0);
-        l = Util.categorize(l0);
-        m = Util.categorize(m0);
-        n = Util.categorize(n0);
-        o = Util.categorize(o0);
-        // p = 'pv' if p[i] < 0 else ''
-        p = m.mult(n).applyi(new Op() {
-            @Override
-            public double apply(double val) {
-                return val < 0 ? 1 : 0;
-            }
-        });
+    /**
+     * Reads the database.  If a snapshot of an earlier load is given and the database
+     * was only appended to since, which the reader checks cell for cell, only the new
+     * rows are collected and appended to it.
+     *
+     * @param snapshot the data of an earlier load, or null.
+     * @return the database content, or null on error, see {@code readErrMsg}.
+     */
+    private List<Vector> readDatabase(List<Vector> snapshot) {
+        int numRows = (snapshot == null) ? 0 : snapshot.get(0).size();
+        DataReader reader = DataReader.create(dbFile, schema);
+        List<Vector> data = reader.update(snapshot);
+        if (data != null && data == snapshot) {
+            updateMessage(String.format("Appended %d new rows...", data.get(0).size() - numRows));
+        }
+        readErrMsg = (data == null) ? reader.getErrMsg() : null;
+        return data;
+    }
+
+    /**
+     * Counts the rows of K to O binned differently by the given graph than by exact
+     * percentiles.  The columns already computed are found in the cache, if any.
+     *
+     * @param graph the graph of the derived columns.
+     * @param data  the database content.
+     * @return the counts, as a message.
+     */
+    private String countDifferences(ColumnGraph graph, List<Vector> data) {
+        List<String> names = Arrays.asList("K", "L", "M", "N", "O");
+        Map<String, Vector> approx = graph.run(data, names, null);
+        Map<String, Vector> exact = PostProcess.graph().setCache(derivedCache).run(data, names, null);
+        List<String> counts = new ArrayList<>(names.size());
+        for (String name : names) {
+            counts.add(name + " " + Util.countDifferences(approx.get(name), exact.get(name)));
+        }
+        return String.format("Rows binned differently than by exact percentiles (%s, %d rows): %s",
+                categorizeMode, data.get(0).size(), String.join(", ", counts));
+    }
 
-        q0 = d.gt(cd1);                       // min > max[-1]
-        q1 = d.gt(ed1);                       // min > close[-1]
-        q2 = dd1.gt(c);                       // min[-1] > max
-        q3 = ed1.gt(c);                       // close[-1] > max
-        // q = DY if q0, LY if q1, DG if q2, LG if q3
-        q = Vector.cond(q0, q1, q2, q3);
-
-        temp0 = c.gt(cd1);
-        temp1 = d.gt(dd1);
-        temp2 = temp0.not();
-        temp3 = temp1.not();
-        r0 = temp0.mult(temp1);             // max > max[-1], min > min[-1]
-        r1 = temp2.mult(temp3);             // max < max[-1], min < min[-1]
-        r2 = temp2.mult(temp1);             // max < max[-1], min > min[-1]
-        r3 = temp0.mult(temp3);             // max > max[-1], min < min[-1]
-        // r = HH if r0, LL if r1, GS if r2, BU if r3
-        r = Vector.cond(r0, r1, r2, r3);
-
-
-        s = e.sub(ca1);                         // close - max[+1]
-        t = e.sub(da1);                         // close - min[+1]
-        u = e.sub(ca2);                         // close - max[+2]
-        v = e.sub(da2);                         // close - min[+2]
-
-        temp0 = s.add(t).gt(0);
-        temp1 = u.add(v).gt(0);
-        temp2 = temp0.not();
-        temp3 = temp1.not();
-        w = Vector.cond(temp2.mult(temp3), temp0.mult(temp1), temp2.mult(temp1), temp0.mult(temp3));
-        // w = B if !temp0 && !temp1, S if temp0 && temp1, V if !temp0 && temp1, L if temp0 && !temp1
-
-        Vector eint = e.integral();
-        x = Util.movingAverage(eint, 5);
-        y = Util.movingAverage(eint, 10);
-        z = Util.movingAverage(eint, 125);
-        aa = Util.movingAverage(eint, 250);
-
-        data.add(g);
-        data.add(h);
-        data.add(i);
-        data.add(j);
-        data.add(k);
-        data.add(l);
-        data.add(m);
-        data.add(n);
-        data.add(o);
-        data.add(p);
-        data.add(q);
-        data.add(r);
-        data.add(s);
-        data.add(t);
-        data.add(u);
-        data.add(v);
-        data.add(w);
-        data.add(x);
-        data.add(y);
-        data.add(z);
-        data.add(aa);
+    /**
+     * Calculates the given columns and those they read, reporting each one as it is
+     * done.
+     *
+     * @param graph the graph of the derived columns.
+     * @param data  the database content.
+     * @param names the names of the columns to return.
+     * @return the columns.
+     * @throws IllegalArgumentException if a column is unknown.
+     */
+    private List<Vector> postProcess(ColumnGraph graph, List<Vector> data, List<String> names) {
+        Map<String, Vector> cols = graph.run(data, names, (name, nanos, done, total) -> {
+            updateMessage(String.format("Column %s done in %d ms (%d/%d)", name, nanos / 1000000, done, total));
+            updateProgress(10 + 90L * done / total, 100);
+        });
+        return new ArrayList<>(cols.values());
     }
-}
\ No newline at end of file
+}
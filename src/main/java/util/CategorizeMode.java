@@ -0,0 +1,123 @@
+package util;
+
+import data.Arena;
+import data.QuantileSketch;
+import data.Vector;
+
+/**
+ * How a column is binned into -2 to 2 by its percentiles: by the exact percentiles of
+ * the whole column, by percentiles estimated with a {@link QuantileSketch}, or by those
+ * of the trailing window of rows ending at each row.
+ * <p>
+ * A CategorizeMode is immutable, so the stages that bin a column can capture it when
+ * they are created, and the identity of their columns in a {@link data.DerivedCache},
+ * which includes {@link #toString()}, always matches how they are binned.
+ * </p>
+ */
+public final class CategorizeMode {
+
+    /**
+     * The exact percentiles of the whole column, see {@link Util#categorize(Vector, Arena)}.
+     */
+    public static final CategorizeMode EXACT = new CategorizeMode(0, 0);
+
+    private final double rankError;
+    private final int window;
+
+    private CategorizeMode(double rankError, int window) {
+        this.rankError = rankError;
+        this.window = window;
+    }
+
+    /**
+     * Returns the mode that estimates the percentiles of the whole column with the
+     * given rank error, see {@link Util#categorize(Vector, QuantileSketch, Arena)}.
+     *
+     * @param error the rank error, see {@link QuantileSketch#QuantileSketch(double)}, or
+     *              0 for exact percentiles.
+     * @return the mode.
+     * @throws IllegalArgumentException if the rank error is out of range.
+     */
+    public static CategorizeMode rankError(double error) {
+        if (error == 0) {
+            return EXACT;
+        }
+        if (!(error > 0 && error < 1)) {
+            throw new IllegalArgumentException("Rank error out of range: " + error);
+        }
+        return new CategorizeMode(error, 0);
+    }
+
+    /**
+     * Returns the mode that bins each row by the percentiles of the trailing window of
+     * rows ending at it, see {@link Util#categorize(Vector, int, Arena)}.
+     *
+     * @param window the number of rows of a window, or 0 for the whole column.
+     * @return the mode.
+     * @throws IllegalArgumentException if the window is negative.
+     */
+    public static CategorizeMode window(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + window);
+        }
+        return (window == 0) ? EXACT : new CategorizeMode(0, window);
+    }
+
+    /**
+     * Returns the rank error of the percentiles.
+     *
+     * @return the rank error, or 0 if they are exact or of a window.
+     */
+    public double getRankError() {
+        return rankError;
+    }
+
+    /**
+     * Returns the window of the percentiles.
+     *
+     * @return the number of rows of a window, or 0 for the whole column.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns true if the percentiles are the exact ones of the whole column.
+     *
+     * @return true if this is {@link #EXACT}.
+     */
+    public boolean isExact() {
+        return rankError == 0 && window == 0;
+    }
+
+    /**
+     * Bins the given array in this mode.  Safe to call from several threads at once.
+     *
+     * @param arr   the array to quantize
+     * @param arena the arena, or null to allocate new arrays.
+     * @return the quantized array, as a categorical vector.
+     */
+    public Vector categorize(Vector arr, Arena arena) {
+        if (window > 0) {
+            return Util.categorize(arr, window, arena);
+        }
+        if (rankError > 0) {
+            return Util.categorize(arr, QuantileSketch.of(arr, rankError), arena);
+        }
+        return Util.categorize(arr, arena);
+    }
+
+    /**
+     * Returns this mode as a string such as {@code window 250}, {@code error 0.01} or
+     * {@code exact}.
+     *
+     * @return the string.
+     */
+    @Override
+    public String toString() {
+        if (window > 0) {
+            return "window " + window;
+        }
+        return (rankError > 0) ? "error " + rankError : "exact";
+    }
+}
@@ -0,0 +1,223 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Exact percentiles of a work array, several at once.
+ * <p>
+ * The percentiles are the same as those of a
+ * {@link org.apache.commons.math3.stat.descriptive.rank.Percentile} with its default
+ * settings, evaluated one after the other on the same data: the selection follows
+ * {@link org.apache.commons.math3.util.KthSelector} with the median of 3 pivots step
+ * by step, and the percentiles share one pivot cache, so the later ones only partition
+ * the parts of the array the earlier ones left unsorted.  Since the steps are the same,
+ * the work array ends up in the same order, which matters for NaNs: where they end up,
+ * and so which percentiles they become, depends on the whole history.
+ * </p>
+ * <p>
+ * The partitions are faster than those of {@code KthSelector}: each block of elements
+ * is scanned for the elements to swap without branching, into a small list of offsets,
+ * and the swaps are done from the lists in the same pairs as the scalar loop.  Near the
+ * middle, where the two scans meet, the scalar loop takes over.  A Quantiles instance
+ * holds the pivot cache and the offset lists, so it is not thread-safe, but it is cheap
+ * to create one per thread.
+ * </p>
+ */
+public class Quantiles {
+
+    /**
+     * The size of the pivot cache of {@code Percentile}.
+     */
+    private static final int PIVOTS_HEAP_LENGTH = 512;
+
+    /**
+     * The largest range that is sorted rather than partitioned.
+     */
+    private static final int MIN_SELECT_SIZE = 15;
+
+    /**
+     * The number of elements scanned at a time by the partition.
+     */
+    private static final int BLOCK = 128;
+
+    private final int[] pivots = new int[PIVOTS_HEAP_LENGTH];
+    private final int[] offsetsLeft = new int[BLOCK];
+    private final int[] offsetsRight = new int[BLOCK];
+
+    /**
+     * Returns the given percentiles of the work array, in the given order, estimated like
+     * the default {@link org.apache.commons.math3.stat.descriptive.rank.Percentile.EstimationType#LEGACY}.
+     * The work array is reordered.
+     *
+     * @param work the values.
+     * @param ps   the percentiles, from 0 to 100.
+     * @return the percentiles, or NaNs if the work array is empty.
+     */
+    public double[] percentiles(double[] work, double... ps) {
+        Arrays.fill(pivots, -1);
+        double[] ans = new double[ps.length];
+        for (int k = 0; k < ps.length; k++) {
+            ans[k] = percentile(work, ps[k]);
+        }
+        return ans;
+    }
+
+    private double percentile(double[] work, double p) {
+        int length = work.length;
+        if (length == 0) {
+            return Double.NaN;
+        } else if (length == 1) {
+            return work[0];
+        }
+        double pos = p / 100 * (length + 1);
+        double fpos = Math.floor(pos);
+        int intPos = (int) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return select(work, 0);
+        } else if (pos >= length) {
+            return select(work, length - 1);
+        }
+        double lower = select(work, intPos - 1);
+        double upper = select(work, intPos);
+        return lower + dif * (upper - lower);
+    }
+
+    /**
+     * Returns the kth smallest element, as {@code KthSelector.select} does.
+     */
+    private double select(double[] work, int k) {
+        int begin = 0;
+        int end = work.length;
+        int node = 0;
+        while (end - begin > MIN_SELECT_SIZE) {
+            int pivot;
+            if (node < pivots.length && pivots[node] >= 0) {
+                pivot = pivots[node];
+            } else {
+                pivot = partition(work, begin, end, medianOf3(work, begin, end));
+                if (node < pivots.length) {
+                    pivots[node] = pivot;
+                }
+            }
+            if (k == pivot) {
+                return work[k];
+            } else if (k < pivot) {
+                end = pivot;
+                node = Math.min(2 * node + 1, pivots.length);
+            } else {
+                begin = pivot + 1;
+                node = Math.min(2 * node + 2, pivots.length);
+            }
+        }
+        Arrays.sort(work, begin, end);
+        return work[k];
+    }
+
+    private static int medianOf3(double[] work, int begin, int end) {
+        int inclusiveEnd = end - 1;
+        int middle = begin + (inclusiveEnd - begin) / 2;
+        double wBegin = work[begin];
+        double wMiddle = work[middle];
+        double wEnd = work[inclusiveEnd];
+        if (wBegin < wMiddle) {
+            if (wMiddle < wEnd) {
+                return middle;
+            }
+            return (wBegin < wEnd) ? inclusiveEnd : begin;
+        }
+        if (wBegin < wEnd) {
+            return begin;
+        }
+        return (wMiddle < wEnd) ? inclusiveEnd : middle;
+    }
+
+    /**
+     * Partitions the range around the element at the given index, and returns its final
+     * index, leaving the range as {@code KthSelector.partition} does.
+     * <p>
+     * The scalar loop swaps the ith element from the left that is not below the pivot
+     * with the ith element from the right that is not above it, for as long as the left
+     * one is before the right one.  So the blocks on both sides can be scanned for these
+     * elements first, as long as they do not overlap, and the pairs swapped from the
+     * lists; the scalar loop then goes on from the last pair.
+     * </p>
+     */
+    private int partition(double[] work, int begin, int end, int pivot) {
+        final double value = work[pivot];
+        work[pivot] = work[begin];
+
+        int i = begin + 1;
+        int j = end - 1;
+        // the next elements to scan are from left to right, inclusive.
+        int left = i;
+        int right = j;
+        int numLeft = 0;
+        int numRight = 0;
+        int startLeft = 0;
+        int startRight = 0;
+        int[] offLeft = offsetsLeft;
+        int[] offRight = offsetsRight;
+        while (true) {
+            if (numLeft == 0) {
+                if (right - left + 1 < BLOCK) {
+                    break;
+                }
+                for (int x = left; x < left + BLOCK; x++) {
+                    offLeft[numLeft] = x;
+                    numLeft += (work[x] < value) ? 0 : 1;
+                }
+                left += BLOCK;
+                startLeft = 0;
+            }
+            if (numRight == 0) {
+                if (right - left + 1 < BLOCK) {
+                    break;
+                }
+                for (int x = right; x > right - BLOCK; x--) {
+                    offRight[numRight] = x;
+                    numRight += (work[x] > value) ? 0 : 1;
+                }
+                right -= BLOCK;
+                startRight = 0;
+            }
+            int num = Math.min(numLeft, numRight);
+            if (num > 0) {
+                for (int c = 0; c < num; c++) {
+                    int l = offLeft[startLeft + c];
+                    int r = offRight[startRight + c];
+                    double tmp = work[l];
+                    work[l] = work[r];
+                    work[r] = tmp;
+                }
+                i = offLeft[startLeft + num - 1] + 1;
+                j = offRight[startRight + num - 1] - 1;
+                numLeft -= num;
+                numRight -= num;
+                startLeft += num;
+                startRight += num;
+            }
+        }
+
+        while (i < j) {
+            while (i < j && work[j] > value) {
+                --j;
+            }
+            while (i < j && work[i] < value) {
+                ++i;
+            }
+            if (i < j) {
+                double tmp = work[i];
+                work[i++] = work[j];
+                work[j--] = tmp;
+            }
+        }
+
+        if (i >= end || work[i] > value) {
+            --i;
+        }
+        work[begin] = work[i];
+        work[i] = value;
+        return i;
+    }
+}
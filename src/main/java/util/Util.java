@@ -1,6 +1,7 @@
 package util;
 
-import data.Op;
+import data.Arena;
+import data.QuantileSketch;
 import data.Value;
 import data.Vector;
 import org.apache.poi.ss.usermodel.Cell;
@@ -16,37 +17,95 @@ import java.util.Map;
  */
 public class Util {
 
-    private static Percentile p = new Percentile();
-
     /**
-     * Compute percentiles from given array, then quantize.
+     * Compute percentiles from given array, then quantize.  Safe to call from
+     * several threads at once.  Use {@link #categorize(Vector, Arena)} for a
+     * categorical result.
      *
      * @param arr the array to quantize
      * @return the quantized array.
      */
     public static Vector categorize(Vector arr) {
-        double[] values = arr.getDataCopy();
-        p.setData(values);
-        final double p2 = p.evaluate(80);
-        final double p1 = p.evaluate(60);
-        final double n1 = p.evaluate(40);
-        final double n2 = p.evaluate(20);
-        // System.out.println(String.format("%f, %f, %f, %f", n2, n1, p1, p2));
-        return arr.apply(new Op() {
-            @Override
-            public double apply(double val) {
-                if (val < n2) {
-                    return -2;
-                } else if (val < n1) {
-                    return -1;
-                } else if (val < p1) {
-                    return 0;
-                } else if (val < p2) {
-                    return 1;
-                }
-                return 2;
+        return categorize(arr, null).lazy().eval();
+    }
+
+    /**
+     * Compute percentiles from given array, then quantize, allocating the result and
+     * the work array from the given arena.
+     * <p>
+     * The percentiles are the same as those of a {@link Percentile} with its default
+     * settings, after {@code setData}: {@link Quantiles} selects them all on one work
+     * array with the same cached pivots, so even NaNs give the same result.  The column
+     * is then binned in one pass by {@link Vector#bin(double[], int, Arena)}.  For
+     * estimated percentiles, or those of a trailing window, see {@link CategorizeMode}.
+     * </p>
+     *
+     * @param arr   the array to quantize
+     * @param arena the arena, or null to allocate new arrays.
+     * @return the quantized array, as a categorical vector.
+     */
+    public static Vector categorize(Vector arr, Arena arena) {
+        double[] values = (arena != null) ? arena.take(arr.size()) : new double[arr.size()];
+        arr.copyTo(values);
+        double[] cuts = new Quantiles().percentiles(values, 80, 60, 40, 20);
+        if (arena != null) {
+            arena.release(values);
+        }
+        // System.out.println(String.format("%f, %f, %f, %f", cuts[3], cuts[2], cuts[1], cuts[0]));
+        return arr.bin(new double[]{cuts[3], cuts[2], cuts[1], cuts[0]}, -2, arena);
+    }
+
+    /**
+     * Quantize each row with the percentiles of the trailing window of rows ending at
+     * it, so no row is binned with the values of later rows, as a backtest needs.  The
+     * rows are NaN until the window is full.  The percentiles leave out the NaNs of the
+     * window, and are updated in O(log window) per row, see
+     * {@link Vector#rollingBin(int, double[], int, Arena)}.
+     *
+     * @param arr    the array to quantize
+     * @param window the number of rows of a window.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the quantized array, as a categorical vector.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public static Vector categorize(Vector arr, int window, Arena arena) {
+        return arr.rollingBin(window, new double[]{20, 40, 60, 80}, -2, arena);
+    }
+
+    /**
+     * Quantize with the percentiles estimated by the given sketch, which may hold other
+     * data than the given array, for example all rows so far of a stream.  NaN falls
+     * into the top category, as with exact percentiles.
+     *
+     * @param arr    the array to quantize
+     * @param sketch the sketch.
+     * @param arena  the arena, or null to allocate a new vector.
+     * @return the quantized array, as a categorical vector.
+     */
+    public static Vector categorize(Vector arr, QuantileSketch sketch, Arena arena) {
+        double[] cuts = {sketch.percentile(20), sketch.percentile(40), sketch.percentile(60), sketch.percentile(80)};
+        return arr.bin(cuts, -2, arena);
+    }
+
+    /**
+     * Returns the number of elements that differ between two vectors of the same size,
+     * with NaN equal to NaN, for example the rows binned differently by approximate and
+     * exact percentiles.
+     *
+     * @param a the first vector.
+     * @param b the second vector.
+     * @return the number of differences.
+     */
+    public static int countDifferences(Vector a, Vector b) {
+        int diff = 0;
+        for (int i = 0; i < a.size(); i++) {
+            double x = a.get(i);
+            double y = b.get(i);
+            if (!(x == y || (Double.isNaN(x) && Double.isNaN(y)))) {
+                diff++;
             }
-        });
+        }
+        return diff;
     }
 
     /**
@@ -55,11 +114,28 @@ public class Util {
      * @param integral the integral vector.
      * @param n        number of samples to average.
      * @return the moving average.
+     * @deprecated use {@link Vector#rollingMean(int)}, which does not lose precision on
+     * long histories.
      */
+    @Deprecated
     public static Vector movingAverage(Vector integral, int n) {
-        Vector ans = integral.sub(integral.shift(-n));
-        ans.scalei(1.0 / n);
-        return ans;
+        return movingAverage(integral, n, null);
+    }
+
+    /**
+     * Calculate the moving average from the integral vector, allocated from the given
+     * arena.
+     *
+     * @param integral the integral vector.
+     * @param n        number of samples to average.
+     * @param arena    the arena, or null to allocate a new vector.
+     * @return the moving average.
+     * @deprecated use {@link Vector#rollingMean(int, Arena)}, which does not lose
+     * precision on long histories.
+     */
+    @Deprecated
+    public static Vector movingAverage(Vector integral, int n, Arena arena) {
+        return integral.lazy().sub(integral.shift(-n).lazy()).scale(1.0 / n).eval(arena);
     }
 
     /**
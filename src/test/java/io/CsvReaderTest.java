@@ -0,0 +1,46 @@
+package io;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests the number parsing of {@link CsvReader}, which must agree with
+ * {@link Double#parseDouble(String)} on both of its paths.
+ */
+public class CsvReaderTest extends TestCase {
+
+    private static double parse(String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        return CsvReader.parseNumber(b, 0, b.length);
+    }
+
+    public void testFastPath() {
+        assertEquals(-1234.5e-3, parse("-1234.5e-3"), 0);
+        assertEquals(12.25, parse(" +12.25 "), 0);
+    }
+
+    public void testNegativeBigMantissa() {
+        assertEquals(-12345678901234567.0, parse("-12345678901234567"), 0);
+        assertEquals(12345678901234567.0, parse("+12345678901234567"), 0);
+    }
+
+    public void testNegativeLargeExponent() {
+        assertEquals(-1e30, parse("-1e30"), 0);
+        assertEquals(-1e-30, parse("-1e-30"), 0);
+        assertEquals(1e30, parse("1e30"), 0);
+    }
+
+    public void testNegativeManyDigits() {
+        String s = "-0.12345678901234567890123";
+        assertEquals(Double.parseDouble(s), parse(s), 0);
+        s = "-98765432109876543210.5";
+        assertEquals(Double.parseDouble(s), parse(s), 0);
+    }
+
+    public void testNotANumber() {
+        assertTrue(Double.isNaN(parse("-")));
+        assertTrue(Double.isNaN(parse("1e")));
+        assertTrue(Double.isNaN(parse("12x")));
+    }
+}
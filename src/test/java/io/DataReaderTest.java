@@ -0,0 +1,149 @@
+package io;
+
+import data.Vector;
+import junit.framework.TestCase;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the readers only append the new rows to an earlier load if the database
+ * was only appended to, and read it all again otherwise.
+ */
+public class DataReaderTest extends TestCase {
+
+    private static final ReadSchema SCHEMA = ReadSchema.consecutive(6);
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("qexcel", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                assertTrue(f.delete());
+            }
+        }
+        assertTrue(dir.delete());
+    }
+
+    /**
+     * Returns the rows of a database: a date, then open, max, min, close and volume.
+     */
+    private static double[][] rows(int n) {
+        double[][] ans = new double[n][];
+        for (int i = 0; i < n; i++) {
+            ans[i] = new double[]{42000 + i, 10 + i, 12 + i, 9 + i, 11 + i, 1000 * (i + 1)};
+        }
+        return ans;
+    }
+
+    private File writeCsv(double[][] rows) throws IOException {
+        File f = new File(dir, "db.csv");
+        try (PrintWriter out = new PrintWriter(f, "US-ASCII")) {
+            for (double[] row : rows) {
+                StringBuilder line = new StringBuilder();
+                line.append(String.format("%d", (long) row[0]));
+                for (int j = 1; j < row.length; j++) {
+                    line.append(',').append(row[j]);
+                }
+                out.println(line);
+            }
+        }
+        return f;
+    }
+
+    private File writeWorkbook(double[][] rows, boolean xlsx) throws IOException {
+        File f = new File(dir, xlsx ? "db.xlsx" : "db.xls");
+        try (Workbook wb = xlsx ? new XSSFWorkbook() : new HSSFWorkbook();
+             OutputStream out = new FileOutputStream(f)) {
+            Sheet sheet = wb.createSheet();
+            for (int i = 0; i < rows.length; i++) {
+                Row r = sheet.createRow(i);
+                for (int j = 0; j < rows[i].length; j++) {
+                    r.createCell(j).setCellValue(rows[i][j]);
+                }
+            }
+            wb.write(out);
+        }
+        return f;
+    }
+
+    private static void assertRows(double[][] expected, List<Vector> data) {
+        assertEquals(expected.length, data.get(0).size());
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], data.get(j).get(i), 0);
+            }
+        }
+    }
+
+    /**
+     * Loads the first rows, then checks that the appended rows are read alone, and that
+     * after an edit to a middle row everything is read again.
+     */
+    private void checkUpdate(ReaderFactory factory, boolean csv, boolean xlsx) throws IOException {
+        double[][] all = rows(8);
+        double[][] first = new double[5][];
+        System.arraycopy(all, 0, first, 0, first.length);
+        File f = csv ? writeCsv(first) : writeWorkbook(first, xlsx);
+        List<Vector> snapshot = factory.create(f.getPath()).getData();
+        assertRows(first, snapshot);
+
+        // appended rows only.
+        f = csv ? writeCsv(all) : writeWorkbook(all, xlsx);
+        DataReader reader = factory.create(f.getPath());
+        List<Vector> tail = reader.getData(snapshot);
+        assertNotNull(reader.getErrMsg(), tail);
+        assertEquals(3, tail.get(0).size());
+        List<Vector> updated = reader.update(new ArrayList<>(snapshot));
+        assertRows(all, updated);
+
+        // an edit to a middle row, with the last loaded row unchanged.
+        all[2][4] += 0.5;
+        f = csv ? writeCsv(all) : writeWorkbook(all, xlsx);
+        reader = factory.create(f.getPath());
+        assertNull(reader.getData(snapshot));
+        assertTrue(reader.getErrMsg(), reader.getErrMsg().contains("row 3 does not match"));
+        List<Vector> copy = new ArrayList<>(snapshot);
+        List<Vector> reloaded = reader.update(copy);
+        assertNotSame(copy, reloaded);
+        assertRows(all, reloaded);
+    }
+
+    private interface ReaderFactory {
+        DataReader create(String filename);
+    }
+
+    public void testCsv() throws IOException {
+        checkUpdate(name -> DataReader.create(name, SCHEMA), true, false);
+    }
+
+    public void testXls() throws IOException {
+        checkUpdate(name -> new ExcelReader(name, SCHEMA, false), false, false);
+    }
+
+    public void testXlsStreaming() throws IOException {
+        checkUpdate(name -> new ExcelReader(name, SCHEMA, true), false, false);
+    }
+
+    public void testXlsxStreaming() throws IOException {
+        checkUpdate(name -> new ExcelReader(name, SCHEMA, true), false, true);
+    }
+}